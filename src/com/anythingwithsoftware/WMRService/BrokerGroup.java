@@ -0,0 +1,416 @@
+/*
+ * BrokerGroup
+ * Publishes to an ordered list of MQTT brokers (primary first) over persistent connections.
+ * Every message gets a sequence number and is kept in a bounded journal. Each broker has its own connection thread
+ * and a cursor: the last sequence number the broker acknowledged.
+ *  - the active broker (the first one that's connected and caught up) gets messages as they are published
+ *  - brokers further down the list wait on standby, with their connection open
+ *  - when the active broker fails, the next connected broker takes over from its own cursor: it first sends what it
+ *    hasn't received yet (e.g. everything published while it was on standby), then the live data
+ *  - when a broker higher up the list comes back it replays what it missed, in order and at a bounded rate, while
+ *    the active broker carries on with the live data; once caught up it takes over as the active broker
+ * Brokers that are down are probed by reconnecting every retry interval. If a broker falls behind by more than the
+ * journal size, it is sent the latest message of every topic that is no longer in the journal (e.g. the schema or an
+ * alert that hasn't changed for a long time) before carrying on with the journal.
+ * Non retained messages (diagnostics) are live only: they go to the active broker, are never journaled or replayed,
+ * and are dropped while no broker is available.
+ * Each connection uses its own client id (the configured one for the first broker, with "-<n>" appended for the
+ * others), so brokers sharing sessions don't disconnect one connection for the other.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+public class BrokerGroup {
+	static final int MAX_BATCH = 10;	// messages in flight per broker (paho default max inflight)
+	static final long IDLE_WAIT = 1000;	// msec
+	static final int MAX_LIVE = 100;	// live only messages waiting for the active broker
+
+	private enum linkRoles {
+		ACTIVE,
+		CATCHUP,
+		STANDBY
+	};
+
+	private static class LatestMessage {
+		final long seq;
+		final byte[] payload;
+		LatestMessage(long seq, byte[] payload) {
+			this.seq = seq;
+			this.payload = payload;
+		}
+	}
+
+	private static class LiveMessage {
+		final String topic;
+		final byte[] payload;
+		LiveMessage(String topic, byte[] payload) {
+			this.topic = topic;
+			this.payload = payload;
+		}
+	}
+
+	// journal of retained messages, ring buffer indexed by sequence number
+	private String[] topics;
+	private byte[][] payloads;
+	private long head = 1;	// next sequence number
+	private long tail = 1;	// oldest sequence number still in the journal
+	// latest message of every topic, for brokers that have fallen behind the journal
+	private Map<String, LatestMessage> latest = new HashMap<String, LatestMessage>();
+	private ArrayDeque<LiveMessage> live = new ArrayDeque<LiveMessage>();
+
+	private List<Link> links = new ArrayList<Link>();
+	private int active = -1;
+	private volatile int deliveredCnt = 0;
+	private volatile boolean closing = false;
+
+	public BrokerGroup(Properties props, String brokers, String clientId, String user, String password) {
+		int size = Math.max(MAX_BATCH, Integer.parseInt(props.getProperty("brokerJournalSize", "10000")));
+		topics = new String[size];
+		payloads = new byte[size][];
+		double catchupRate = Double.parseDouble(props.getProperty("brokerCatchupRate", "20"));
+		long retryInterval = Integer.parseInt(props.getProperty("brokerRetryInterval", "5")) * 1000L;
+
+		MqttConnectOptions opt = new MqttConnectOptions();
+		opt.setCleanSession(true);
+		if (user.length() > 0 && password.length() > 0) {
+			opt.setUserName(user);
+			opt.setPassword(password.toCharArray());
+		}
+		for (String uri : brokers.split(",")) {
+			if (uri.trim().length() > 0)
+				links.add(new Link(links.size(), uri.trim(), links.isEmpty() ? clientId : String.format("%s-%d", clientId, links.size()),
+						opt, catchupRate, retryInterval));
+		}
+		for (Link l : links)
+			l.start();
+	}
+
+	public int getMessageCount() { return deliveredCnt; }
+	public void resetMessageCount() { deliveredCnt = 0; }
+
+	/**
+	 * Queue a message for the brokers, never blocks.
+	 * @param topic full topic
+	 * @param payload message payload
+	 * @param retain true for a retained message, non retained messages are only sent to the active broker
+	 */
+	public synchronized void publish(String topic, byte[] payload, boolean retain) {
+		if (!retain) {
+			if (active < 0)
+				return;
+			if (live.size() == MAX_LIVE)
+				live.poll();	// active broker can't keep up, drop the oldest
+			live.add(new LiveMessage(topic, payload));
+			notifyAll();
+			return;
+		}
+		if (head - tail == topics.length)
+			++tail;	// full, drop the oldest
+		int i = (int) (head % topics.length);
+		topics[i] = topic;
+		payloads[i] = payload;
+		latest.put(topic, new LatestMessage(head, payload));
+		++head;
+		notifyAll();
+	}
+
+	/**
+	 * Give the active broker a few seconds to send what's queued, then disconnect all brokers.
+	 */
+	public void close() {
+		long deadline = System.currentTimeMillis() + 5000;
+		synchronized (this) {
+			while (active >= 0 && links.get(active).cursor < head - 1 && System.currentTimeMillis() < deadline) {
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			closing = true;
+			notifyAll();
+		}
+		for (Link l : links) {
+			l.interrupt();
+			try {
+				l.join(2000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// *********************************************************************************************
+	// *********************************************************************************************
+	// called by the broker connection threads
+
+	private synchronized void linkUp(Link l) {
+		if (active < 0)
+			activate(l);
+		notifyAll();
+	}
+
+	private synchronized void linkDown(Link l) {
+		if (active == l.index) {
+			active = -1;
+			live.clear();
+			// fail over to the next connected broker in the list
+			for (Link next : links) {
+				if (next != l && next.isConnected()) {
+					activate(next);
+					break;
+				}
+			}
+			if (active < 0)
+				WMRUtils.writeErrMessage("No MQTT broker available, queueing messages");
+		}
+		notifyAll();
+	}
+
+	private void activate(Link l) {
+		// the cursor is kept, the broker first gets whatever it hasn't received yet
+		active = l.index;
+		WMRUtils.writeLogMessage("MQTT broker %s is active", l.uri);
+	}
+
+	private synchronized linkRoles getRole(Link l) {
+		if (active < 0)
+			activate(l);
+		if (l.index == active)
+			return linkRoles.ACTIVE;
+		return (l.index < active ? linkRoles.CATCHUP : linkRoles.STANDBY);
+	}
+
+	/**
+	 * Wait until there are messages after the cursor, then copy up to max of them, in sequence order.
+	 * @return number of messages copied
+	 */
+	private synchronized int read(Link l, int max, String[] t, byte[][] p, long[] seq, long wait) throws InterruptedException {
+		if (l.cursor + 1 >= head && (live.isEmpty() || l.index != active) && !closing)
+			wait(wait);
+		int n = 0;
+		if (l.cursor + 1 < tail) {
+			// fallen behind the journal, only the latest message of each topic dropped from the journal is sent
+			if (!l.resyncing) {
+				WMRUtils.writeErrMessage("MQTT broker %s missed %d messages (journal full), sending the latest of each topic",
+						l.uri, tail - l.cursor - 1);
+				l.resyncing = true;
+			}
+			List<Map.Entry<String, LatestMessage>> missed = new ArrayList<Map.Entry<String, LatestMessage>>();
+			for (Map.Entry<String, LatestMessage> e : latest.entrySet()) {
+				if (e.getValue().seq > l.cursor && e.getValue().seq < tail)
+					missed.add(e);
+			}
+			missed.sort((a, b) -> Long.compare(a.getValue().seq, b.getValue().seq));
+			for (; n < max && n < missed.size(); n++) {
+				t[n] = missed.get(n).getKey();
+				p[n] = missed.get(n).getValue().payload;
+				seq[n] = missed.get(n).getValue().seq;
+			}
+			if (n == 0)
+				l.cursor = tail - 1;
+		}
+		if (n == 0) {
+			l.resyncing = false;
+			long first = l.cursor + 1;
+			n = (int) Math.min(max, head - first);
+			for (int k = 0; k < n; k++) {
+				int i = (int) ((first + k) % topics.length);
+				t[k] = topics[i];
+				p[k] = payloads[i];
+				seq[k] = first + k;
+			}
+		}
+		for (int k = n; k < max; k++)
+			t[k] = null;
+		return n;
+	}
+
+	/**
+	 * @return next live only message for the active broker, null if there is none
+	 */
+	private synchronized LiveMessage takeLive(Link l) {
+		return (l.index == active ? live.poll() : null);
+	}
+
+	private synchronized void liveSent(Link l) {
+		if (l.index == active)
+			++deliveredCnt;
+	}
+
+	private synchronized void acknowledged(Link l, long seq, int count, linkRoles role) {
+		l.cursor = seq;
+		if (l.index == active) {
+			deliveredCnt += count;
+		} else if (role == linkRoles.CATCHUP && seq >= head - 1 && l.index < active) {
+			// caught up, take over from the lower priority broker
+			activate(l);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Connection to one broker
+	 */
+	private class Link extends Thread {
+		final int index;
+		final String uri;
+		final MqttConnectOptions opt;
+		final long catchupDelay;	// msec per message while catching up
+		final long retryInterval;
+		MqttAsyncClient client = null;
+		long cursor = 0;			// guarded by the BrokerGroup
+		boolean resyncing = false;	// sending the latest messages from before the journal, guarded by the BrokerGroup
+
+		Link(int index, String uri, String clientId, MqttConnectOptions opt, double catchupRate, long retryInterval) {
+			super(String.format("MQTT %s", uri));
+			setDaemon(true);
+			this.index = index;
+			this.uri = uri;
+			this.opt = opt;
+			this.catchupDelay = (catchupRate > 0 ? (long) (1000 / catchupRate) : 0);
+			this.retryInterval = retryInterval;
+			try {
+				client = new MqttAsyncClient(uri, clientId, new MemoryPersistence());
+			} catch (MqttException me) {
+				WMRUtils.writeErrMessage("Bad MQTT broker %s: %s", uri, me.getMessage());
+			}
+		}
+
+		boolean isConnected() {
+			return client != null && client.isConnected();
+		}
+
+		@Override
+		public void run() {
+			String[] t = new String[MAX_BATCH];
+			byte[][] p = new byte[MAX_BATCH][];
+			long[] seq = new long[MAX_BATCH];
+			boolean up = false;
+			try {
+				while (client != null && !closing && !Thread.interrupted()) {
+					if (!client.isConnected()) {
+						if (up) {
+							up = false;
+							linkDown(this);
+						}
+						try {
+							client.connect(opt).waitForCompletion();
+						} catch (MqttException me) {
+							// probe again later
+							Thread.sleep(retryInterval);
+							continue;
+						}
+						WMRUtils.writeLogMessage("MQTT broker %s connected", uri);
+						up = true;
+						linkUp(this);
+					}
+
+					linkRoles role = getRole(this);
+					if (role == linkRoles.STANDBY) {
+						synchronized (BrokerGroup.this) {
+							BrokerGroup.this.wait(IDLE_WAIT);
+						}
+						continue;
+					}
+
+					int n = read(this, role == linkRoles.ACTIVE ? MAX_BATCH : 1, t, p, seq, IDLE_WAIT);
+					if (role == linkRoles.ACTIVE && !sendLive())
+						continue;
+					if (n == 0) {
+						if (role == linkRoles.CATCHUP)
+							acknowledged(this, cursor, 0, role);
+						continue;
+					}
+					if (send(seq, t, p, role) && role == linkRoles.CATCHUP && catchupDelay > 0)
+						Thread.sleep(catchupDelay);
+				}
+			} catch (InterruptedException e) {
+				// closing
+			}
+			if (client != null) {
+				try {
+					if (client.isConnected())
+						client.disconnect().waitForCompletion(2000);
+					client.close();
+				} catch (MqttException me) {
+					// closing anyway
+				}
+			}
+		}
+
+		/**
+		 * Send the queued live only messages, they are not sent again if the connection fails.
+		 * @return false if the connection failed
+		 */
+		private boolean sendLive() {
+			LiveMessage m;
+			while ((m = takeLive(this)) != null) {
+				try {
+					MqttMessage message = new MqttMessage(m.payload);
+					message.setRetained(false);
+					client.publish(m.topic, message).waitForCompletion();
+					liveSent(this);
+				} catch (MqttException me) {
+					DataQueue.logMqttException(me);
+					try {
+						client.disconnect().waitForCompletion(1000);
+					} catch (MqttException e) {
+						// already down
+					}
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Send a batch without waiting for each acknowledgement, then move the cursor past what was acknowledged.
+		 */
+		private boolean send(long[] seq, String[] t, byte[][] p, linkRoles role) {
+			IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[MAX_BATCH];
+			int n = 0;
+			try {
+				for (n = 0; n < MAX_BATCH && t[n] != null; n++) {
+					MqttMessage message = new MqttMessage(p[n]);
+					message.setRetained(true);
+					tokens[n] = client.publish(t[n], message);
+				}
+				for (int k = 0; k < n; k++)
+					tokens[k].waitForCompletion();
+				acknowledged(this, seq[n - 1], n, role);
+				return true;
+			} catch (MqttException me) {
+				DataQueue.logMqttException(me);
+				// acknowledged messages are not sent again
+				int done = 0;
+				while (done < n && tokens[done] != null && tokens[done].isComplete() && tokens[done].getException() == null)
+					++done;
+				if (done > 0)
+					acknowledged(this, seq[done - 1], done, role);
+				try {
+					client.disconnect().waitForCompletion(1000);
+				} catch (MqttException e) {
+					// already down
+				}
+				return false;
+			}
+		}
+	}
+}
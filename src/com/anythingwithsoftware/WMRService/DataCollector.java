@@ -1,40 +1,65 @@
 /* 
  * DataCollector
- * Runnable thread that collects data from WMR100 through an USB/HID connection and passes frames to be parsed by the WMR100Command class
+ * Runnable thread that collects data from WMR100 through a transport (USB/HID connection, TCP bridge, replay) and passes frames to be parsed by the WMR100Command class
  *  
  * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
  * */
 package com.anythingwithsoftware.WMRService;
 
 import java.util.Arrays;
-import org.hid4java.HidDevice;
 
-public class DataCollector extends Thread {
-	private HidDevice wmr;
+public class DataCollector extends Thread implements FrameAssembler.FrameListener {
+	private WMRTransport wmr;
+	private WMR100Device owner;
 	private DataQueue queue;
+	private DiagnosticTap tap;
+	private FrameCache cache;
 	private long lastDataReceived = 0;
 	private long commandCnt = 0;
+	// set by shutdown(), the interrupt flag alone may be cleared by code called on this thread (e.g. paho)
+	private volatile boolean stopRequested = false;
 
-	public DataCollector(HidDevice WMR, DataQueue q) {
+	public DataCollector(WMRTransport WMR, DataQueue q, DiagnosticTap t, FrameCache c, WMR100Device device) {
+		super("DataCollector");
 		wmr = WMR;
 		queue = q;
+		tap = t;
+		cache = c;
+		owner = device;
 	}
 
 	public long getLastDataReceived() { return lastDataReceived; }
 	public long getCommandsReceived() { return commandCnt; }
-	public void resetCommandCount() { commandCnt = 0; }
+	public void resetCommandCount() {
+		commandCnt = 0;
+		if (cache != null)
+			cache.resetCounts();
+	}
+	/**
+	 * @return percentage of commands since the last reset that repeated the previous one and were not decoded
+	 */
+	public double getDuplicateRatio() {
+		return (cache == null || cache.getLookups() == 0 ? 0 : 100.0 * cache.getHits() / cache.getLookups());
+	}
 	public DataQueue getData() { return queue; }
 
+	/**
+	 * Ask the collector to stop after the current read, use join() to wait for it.
+	 */
+	public void shutdown() {
+		stopRequested = true;
+		interrupt();
+	}
+
 	@Override
 	public void run() {
-		byte[] data = new byte[WMR100Constants.MAX_PACKET];
-		int datalen = 0;
+		FrameAssembler assembler = new FrameAssembler();
 		byte rawdata[] = new byte[WMR100Constants.PACKET_LENGTH];
 
 		// do this until we're interrupted or we have a device error
 		WMRUtils.writeLogMessage("Starting data collection");
 		boolean deviceErr = false;
-		while (!deviceErr)
+		while (!deviceErr && !stopRequested)
 		{
 			try {
 				// read a frame, don't wait too long
@@ -46,30 +71,12 @@ public class DataCollector extends Thread {
 					deviceErr = true;
 					break;
 				case 0:
+					tap.flush();
 					break;
 				default:
 					lastDataReceived = System.currentTimeMillis();
-					int len = rawdata[0];
-					//WMRUtils.writeLogMessage(" frame len %d, raw [%02x %02x %02x %02x %02x %02x %02x %02x]", len, rawdata[0], rawdata[1], rawdata[2], rawdata[3], rawdata[4],rawdata[5],rawdata[6],rawdata[7],rawdata[8]);
-					if (len > 7) {
-						WMRUtils.writeErrMessage("Bad frame size!");
-						break;
-					}
-					for (int i = 0; i < len; i++) {
-						data[datalen++] = rawdata[1+i]; 
-						// completed a command?
-						if (datalen > 1 && data[datalen-1] == (byte)0xFF && data[datalen-2] == (byte)0xFF) {
-							// skip empty/malformed commands
-							if (datalen > 3) {
-								WMR100Command cmd = new WMR100Command(data, datalen-2);
-								++commandCnt;
-								// unpack all the item values from the command and add them to the data queue
-								cmd.updateDataQueue(queue);
-							}
-							Arrays.fill(data, (byte)0);
-							datalen = 0;
-						}
-					}
+					tap.rawReport(rawdata, val);
+					assembler.addReport(rawdata, this);
 				}
 			} catch (Exception e) {
 				WMRUtils.writeErrMessage("DataCollector exception: %s", e.getMessage());
@@ -80,7 +87,22 @@ public class DataCollector extends Thread {
 				break;
 			}
 		}
+		tap.close();
 		WMRUtils.writeLogMessage("Stopping data collection");
+		owner.collectorStopped(this);
+	}
+
+	@Override
+	public void frame(byte[] data, int len) {
+		tap.frame(data, len);
+		++commandCnt;
+		// the station repeats itself a lot, nothing to do if this is the same as last time
+		// (unless an alert on this sensor is waiting to see the reading last long enough)
+		if (cache != null && !queue.hasPendingAlerts(data) && cache.isDuplicate(data, len, lastDataReceived))
+			return;
+		WMR100Command cmd = new WMR100Command(data, len);
+		// unpack all the item values from the command and add them to the data queue
+		cmd.updateDataQueue(queue);
 	}
 
 }
@@ -3,6 +3,10 @@
  * Receives parsed WMR100 commands and passes them along.
  * Originally writeen against OpenHAB 1.x API as a binding, this version passes commands to MQTT with throttling to not
  * allow the MQTT subscribers to get overwhelmed.
+ * Messages go to an ordered list of brokers with failover, see BrokerGroup.
+ * Two reporting modes are supported: "throttle" drops values that arrive within maxReportingRate of the last one sent
+ * for the item, "coalesce" keeps the newest value per item and a background thread sends all changed values every
+ * maxReportingRate over a single connection, so the last reading of a sensor is never lost.
  * The broker configuration (including the units to use for message payloads) are specified in the properties passed on
  * construction.  
  *  
@@ -10,28 +14,63 @@
  * */
 package com.anythingwithsoftware.WMRService;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 // This version of DataQueue passes WMR data values to MQTT
-public class DataQueue {
+public class DataQueue implements DataSink {
 	private String MQTTrootTopic;
 	private String MQTTbroker;
 	private String MQTTclientId;
 	private String MQTTuser;
 	private String MQTTpassword;
 	private long maxReportingRate;
-	private int messageCnt = 0;
-	public int getMessageCount() { return messageCnt; }
-	public void resetMessageCount() { messageCnt = 0; }
+	private PayloadEncoder encoder;
+	private StreamServer stream;
+	private PayloadEncoder streamEncoder;
+	private boolean schemaPublished = false;
+	private String frameTopic = null;
+	private long frameTimestamp = 0;
+	private int frameSlot = 0;
+	private RuleEngine rules;
+	private BrokerGroup brokers = null;
+	public int getMessageCount() { return (brokers == null ? 0 : brokers.getMessageCount()); }
+	public void resetMessageCount() {
+		if (brokers != null)
+			brokers.resetMessageCount();
+	}
 	private Map<String, Long> lastMsgSent = new HashMap<String, Long>();
+	// this is the previous value used for wind chill calculations (only refreshed when temperatures are reported)
+	private double lastWindSpeed = 0;  // in mps!
+	public double getLastWindSpeed() { return lastWindSpeed; }
+	public void setLastWindSpeed(double mps) { lastWindSpeed = mps; }
+
+	public enum reportingModes {
+		THROTTLE,
+		COALESCE
+	};
+	private reportingModes reportingMode = reportingModes.THROTTLE;
+	public reportingModes getReportingMode() {
+		return reportingMode;
+	}
+	// coalesce mode: newest unsent payload per topic (relative to the root topic), null once sent
+	private static class PendingSlot {
+		final AtomicReference<byte[]> value = new AtomicReference<byte[]>();
+		byte[] sent = null;		// only used by the flusher
+	}
+	private Map<String, PendingSlot> pending = new ConcurrentHashMap<String, PendingSlot>();
+	private ScheduledExecutorService flusher = null;
 
 	public enum tempUnits {
 		C, 
@@ -71,64 +110,230 @@ public class DataQueue {
 		return rainUnit;
 	}
 
-	public DataQueue(Properties props) {
+	public DataQueue(Properties props, StreamServer stream) {
+		this.stream = stream;
 		MQTTrootTopic = props.getProperty("MQTTrootTopic", "WMR100");
 		MQTTclientId = props.getProperty("MQTTclientId", "WMR100");
 		MQTTbroker = props.getProperty("MQTTbroker", "");
 		MQTTuser= props.getProperty("MQTTuser", "");
 		MQTTpassword = props.getProperty("MQTTpassword", "");
-		if (MQTTbroker.length() == 0) 
-			WMRUtils.writeErrMessage("MQTT broker not configured correctly");
 
-		tempUnit = (props.getProperty("tempUnits","").compareToIgnoreCase("f") == 0 ? tempUnits.F : tempUnits.C);
-		windSpeedUnit = (props.getProperty("windSpeedUnits","").compareToIgnoreCase("mph") == 0 ? windSpeedUnits.MPH : 
+		tempUnit = parseTempUnit(props);
+		windSpeedUnit = parseWindSpeedUnit(props);
+		pressureUnit = parsePressureUnit(props);
+		rainUnit = parseRainUnit(props);
+
+		maxReportingRate = Integer.parseInt(props.getProperty("maxReportingRate", "60")) * 1000;
+
+		String fmt = props.getProperty("payloadFormat", "");
+		PayloadEncoder.payloadFormats payloadFormat = (fmt.compareToIgnoreCase("fixed") == 0 ? PayloadEncoder.payloadFormats.FIXED :
+			(fmt.compareToIgnoreCase("binary") == 0 ? PayloadEncoder.payloadFormats.BINARY : PayloadEncoder.payloadFormats.TEXT));
+		encoder = new PayloadEncoder(payloadFormat, Integer.parseInt(props.getProperty("payloadPrecision", "2")));
+		// the event stream is always text
+		streamEncoder = new PayloadEncoder(payloadFormat == PayloadEncoder.payloadFormats.BINARY ? PayloadEncoder.payloadFormats.FIXED : payloadFormat,
+				Integer.parseInt(props.getProperty("payloadPrecision", "2")));
+
+		rules = new RuleEngine(props, this);
+
+		// MQTTbroker can be a comma separated list, in order of preference
+		if (MQTTbroker.length() > 0)
+			brokers = new BrokerGroup(props, MQTTbroker, MQTTclientId, MQTTuser, MQTTpassword);
+
+		reportingMode = (props.getProperty("reportingMode","").compareToIgnoreCase("coalesce") == 0 ? reportingModes.COALESCE : reportingModes.THROTTLE);
+		if (reportingMode == reportingModes.COALESCE && MQTTbroker.length() > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "DataQueue flush");
+				t.setDaemon(true);
+				return t;
+			});
+			long interval = Math.max(maxReportingRate, WMR100Constants.MIN_FLUSH_INTERVAL);
+			flusher.scheduleWithFixedDelay(() -> flushPending(), interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// unit properties, shared with batch reprocessing
+	static tempUnits parseTempUnit(Properties props) {
+		return (props.getProperty("tempUnits","").compareToIgnoreCase("f") == 0 ? tempUnits.F : tempUnits.C);
+	}
+	static windSpeedUnits parseWindSpeedUnit(Properties props) {
+		return (props.getProperty("windSpeedUnits","").compareToIgnoreCase("mph") == 0 ? windSpeedUnits.MPH : 
 			(props.getProperty("windSpeedUnits","").compareToIgnoreCase("kt") == 0 ? windSpeedUnits.KT : windSpeedUnits.MPS));
-		pressureUnit = (props.getProperty("pressureUnits","").compareToIgnoreCase("mmhg") == 0 ? pressureUnits.MMHG: 
+	}
+	static pressureUnits parsePressureUnit(Properties props) {
+		return (props.getProperty("pressureUnits","").compareToIgnoreCase("mmhg") == 0 ? pressureUnits.MMHG: 
 			(props.getProperty("pressureUnits","").compareToIgnoreCase("inhg") == 0 ? pressureUnits.INHG : pressureUnits.MBAR));
-		rainUnit = (props.getProperty("rainUnits","").compareToIgnoreCase("mm") == 0 ? rainUnits.MM : rainUnits.IN);
+	}
+	static rainUnits parseRainUnit(Properties props) {
+		return (props.getProperty("rainUnits","").compareToIgnoreCase("mm") == 0 ? rainUnits.MM : rainUnits.IN);
+	}
 
-		maxReportingRate = Integer.parseInt(props.getProperty("maxReportingRate", "60")) * 1000;
+	/**
+	 * Stop the background flush (coalesce mode) and disconnect from the brokers, sending any values not yet sent.
+	 */
+	public void close() {
+		if (flusher != null) {
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+			flushPending();
+		}
+		if (brokers != null) {
+			brokers.close();
+			brokers = null;
+		}
 	}
 
+	/**
+	 * Start collecting the item values of one WMR100 command. Only used by the binary payload format, where
+	 * all the values of a command are sent together as one frame when endFrame() is called.
+	 * @param sensor sensor type (WMR100Constants.SENSOR_ constants)
+	 * @param channel sensor channel, 0 for single channel sensors
+	 * @param timestamp time (msec) the command was received
+	 */
+	public void beginFrame(byte sensor, int channel, long timestamp) {
+		frameTimestamp = timestamp;
+		frameSlot = FrameCache.getSlot(sensor, channel);
+		if (encoder.getFormat() != PayloadEncoder.payloadFormats.BINARY)
+			return;
+		frameTopic = String.format("%s/%d", WMRUtils.getSensorName(sensor), channel);
+		encoder.beginFrame(sensor, channel, timestamp);
+	}
+
+	public void endFrame() {
+		if (!encoder.isInFrame())
+			return;
+		byte[] payload = encoder.endFrame();
+		if (payload == null || MQTTbroker.length() == 0)
+			return;
+
+		if (reportingMode == reportingModes.COALESCE) {
+			if (!schemaPublished) {
+				setPending("schema", PayloadEncoder.getSchema().getBytes(StandardCharsets.UTF_8));
+				schemaPublished = true;
+			}
+			setPending("frame/" + frameTopic, payload);
+			return;
+		}
 
+		long currentTime = (new Date()).getTime();
+		Long lastTime = lastMsgSent.get(frameTopic);
+		if (lastTime == null || currentTime > lastTime.longValue() + maxReportingRate) {
+			if (!schemaPublished)
+				schemaPublished = publish(String.format("%s/schema", MQTTrootTopic), PayloadEncoder.getSchema().getBytes(StandardCharsets.UTF_8), true);
+			if (publish(String.format("%s/frame/%s", MQTTrootTopic, frameTopic), payload, true))
+				lastMsgSent.put(frameTopic, currentTime);
+		}
+	}
 
 	public void addValue(String item, Object value) {
+		// alerts and stream clients get every reading, not throttled
+		rules.evaluate(item, value, frameTimestamp, frameSlot);
+		if (stream != null && stream.isEnabled())
+			stream.publish(item, streamEncoder.encodeValue(value));
 		if (MQTTbroker.length() == 0) {
 			return;
 		}
+		if (encoder.isInFrame()) {
+			encoder.addField(item, value);
+			return;
+		}
+		if (reportingMode == reportingModes.COALESCE) {
+			setPending(item, encoder.encodeValue(value));
+			return;
+		}
 
 		long currentTime = (new Date()).getTime();
 		Long lastTime = lastMsgSent.get(item);
 		if (lastTime == null || currentTime > lastTime.longValue() + maxReportingRate) {
-			try {
-				MqttClient sampleClient = new MqttClient(MQTTbroker, MQTTclientId);
-				MqttConnectOptions opt = new MqttConnectOptions();
-				opt.setAutomaticReconnect(true);
-				opt.setCleanSession(true);
-				if (MQTTuser.length() > 0 && MQTTpassword.length() > 0) {
-					opt.setUserName(MQTTuser);
-					opt.setUserName(MQTTpassword);
-				}
-				sampleClient.connect();
-				MqttMessage message = new MqttMessage();
-				message.setPayload(value.toString().getBytes());
-				message.setRetained(true);
-				String fullTopic = String.format("%s/%s", MQTTrootTopic, item);
-				sampleClient.publish(fullTopic, message);
-				sampleClient.disconnect();
-				++messageCnt;
+			if (publish(String.format("%s/%s", MQTTrootTopic, item), encoder.encodeValue(value), true))
 				lastMsgSent.put(item, new Long(currentTime));
-			} catch(MqttException me) {
-				// see https://www.eclipse.org/paho/files/javadoc/org/eclipse/paho/client/mqttv3/MqttException.html
-				if (me.getReasonCode() == MqttException.REASON_CODE_CLIENT_EXCEPTION) {
-					WMRUtils.writeErrMessage("MQTT client exception cause %s ", me.getCause().toString());
-				} else if (me.getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST) {
-					WMRUtils.writeErrMessage("MQTT connection lost exception cause %s ", me.getCause().toString());
-				} else {
-					WMRUtils.writeErrMessage("MQTT exception reason code %d", me.getReasonCode());
-				}
-			};
 		}
 	}
 
+	/**
+	 * @param frame frame bytes (without the 0xFF 0xFF terminator)
+	 * @return true if an alert rule on one of the frame's items is waiting on more readings to be raised
+	 */
+	public boolean hasPendingAlerts(byte[] frame) {
+		return rules.hasPending(FrameCache.getSlot(frame));
+	}
+
+	/**
+	 * Publish an alert raised or cleared by the rule engine right away (retained "ON"/"OFF" on <root>/alert/<rule>).
+	 * @param rule rule name
+	 * @param active true if the alert was raised
+	 * @param changed false for the initial state of the rule after startup
+	 * @param item item the rule is on
+	 * @param value reading that raised/cleared the alert
+	 */
+	public void publishAlert(String rule, boolean active, boolean changed, String item, Object value) {
+		WMRUtils.writeLogMessage("Alert %s %s (%s = %s)", rule, changed ? (active ? "raised" : "cleared") : (active ? "is on" : "is off"), item, value);
+		byte[] payload = (active ? "ON" : "OFF").getBytes(StandardCharsets.US_ASCII);
+		String subTopic = String.format("alert/%s", rule);
+		if (stream != null && stream.isEnabled())
+			stream.publish(subTopic, payload);
+		if (MQTTbroker.length() == 0)
+			return;
+		publish(String.format("%s/%s", MQTTrootTopic, subTopic), payload, true);
+	}
+
+	/**
+	 * Publish a diagnostic message (not retained, not throttled) under the debug topic.
+	 * @param subTopic topic below <root>/debug
+	 * @param payload message payload
+	 */
+	public void publishDebug(String subTopic, byte[] payload) {
+		if (MQTTbroker.length() == 0)
+			return;
+		publish(String.format("%s/debug/%s", MQTTrootTopic, subTopic), payload, false);
+	}
+
+	// last write wins, the flusher picks up whatever is newest
+	private void setPending(String subTopic, byte[] payload) {
+		PendingSlot slot = pending.get(subTopic);
+		if (slot == null) {
+			slot = new PendingSlot();
+			pending.put(subTopic, slot);
+		}
+		slot.value.set(payload);
+	}
+
+	/**
+	 * Queue all pending values (coalesce mode) that changed since they were last sent for the brokers in one go,
+	 * they are sent pipelined.
+	 */
+	private void flushPending() {
+		for (Map.Entry<String, PendingSlot> e : pending.entrySet()) {
+			PendingSlot slot = e.getValue();
+			byte[] payload = slot.value.getAndSet(null);
+			if (payload == null || Arrays.equals(payload, slot.sent))
+				continue;
+			if (publish(String.format("%s/%s", MQTTrootTopic, e.getKey()), payload, true))
+				slot.sent = payload;
+		}
+	}
+
+	static void logMqttException(MqttException me) {
+		// see https://www.eclipse.org/paho/files/javadoc/org/eclipse/paho/client/mqttv3/MqttException.html
+		if (me.getReasonCode() == MqttException.REASON_CODE_CLIENT_EXCEPTION) {
+			WMRUtils.writeErrMessage("MQTT client exception cause %s ", String.valueOf(me.getCause()));
+		} else if (me.getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST) {
+			WMRUtils.writeErrMessage("MQTT connection lost exception cause %s ", String.valueOf(me.getCause()));
+		} else {
+			WMRUtils.writeErrMessage("MQTT exception reason code %d", me.getReasonCode());
+		}
+	}
+
+	// queued in the broker journal, never blocks
+	private boolean publish(String fullTopic, byte[] payload, boolean retained) {
+		if (brokers == null)
+			return false;
+		brokers.publish(fullTopic, payload, retained);
+		return true;
+	}
+
 }
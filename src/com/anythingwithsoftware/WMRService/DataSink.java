@@ -0,0 +1,42 @@
+/*
+ * DataSink
+ * What WMR100Command needs to hand over the item values of a command: the configured units, the last wind speed
+ * (for wind chill) and the values themselves, one frame per command.
+ * Implemented by DataQueue for the live service and by the Reprocessor's capture writer for batch mode.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+public interface DataSink {
+
+	DataQueue.tempUnits getTempUnit();
+	DataQueue.windSpeedUnits getWindSpeedUnit();
+	DataQueue.pressureUnits getPressureUnit();
+	DataQueue.rainUnits getRainUnit();
+
+	/**
+	 * @return previous wind speed (mps) used for wind chill calculations
+	 */
+	double getLastWindSpeed();
+	void setLastWindSpeed(double mps);
+
+	/**
+	 * Start of the values of one WMR100 command.
+	 * @param sensor sensor type (WMR100Constants.SENSOR_ constants)
+	 * @param channel sensor channel, 0 for single channel sensors
+	 * @param timestamp time (msec) the command was received
+	 */
+	void beginFrame(byte sensor, int channel, long timestamp);
+
+	/**
+	 * @param item item name, with a "/channel" suffix for multi channel sensors
+	 * @param value item value
+	 */
+	void addValue(String item, Object value);
+
+	/**
+	 * End of the values of the command started with beginFrame().
+	 */
+	void endFrame();
+}
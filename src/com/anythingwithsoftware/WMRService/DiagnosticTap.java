@@ -0,0 +1,195 @@
+/*
+ * DiagnosticTap
+ * Optionally copies raw HID reports and assembled WMR100 frames to a debug file or to the MQTT debug topic, so
+ * misbehaving sensors can be looked at without rebuilding with the raw frame logging turned on.
+ * Each line is "<epoch msec> <raw|sensor name> <hex bytes>". Lines are built in a reusable buffer, so leaving
+ * the tap on costs next to nothing beyond the output itself; file output is buffered and flushed about once a second.
+ * The tap can be sampled per sensor (e.g. only every 10th wind frame) and, if a toggle file is configured, is
+ * only active while that file exists: create/delete the file to switch the tap on/off while the service runs.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+public class DiagnosticTap {
+	static final long TOGGLE_CHECK_INTERVAL = 5000;
+	static final long FLUSH_INTERVAL = 1000;	// msec, file output is flushed at most this often
+	static final String RAW_NAME = "raw";
+
+	public enum tapOutputs {
+		OFF,
+		FILE,
+		MQTT
+	};
+	private tapOutputs tapOutput = tapOutputs.OFF;
+	private DataQueue queue;
+	private String fileName;
+	private OutputStream out = null;
+	private File toggleFile = null;
+	private boolean active = false;
+	private long lastToggleCheck = 0;
+	private long lastFlush = 0;
+
+	// sampling, indexed by sensor byte (raw HID reports have their own counter)
+	private int[] sampleRates = new int[256];
+	private int[] sampleCounts = new int[256];
+	private int rawSampleRate;
+	private int rawSampleCount = 0;
+
+	private byte[] line = new byte[48 + 3 * WMR100Constants.MAX_PACKET];
+	private byte[] digits = new byte[20];
+
+	public DiagnosticTap(Properties props, DataQueue q) {
+		queue = q;
+		String output = props.getProperty("diagnosticTap", "");
+		tapOutput = (output.compareToIgnoreCase("file") == 0 ? tapOutputs.FILE :
+			(output.compareToIgnoreCase("mqtt") == 0 ? tapOutputs.MQTT : tapOutputs.OFF));
+		fileName = props.getProperty("diagnosticFile", "WMRService.diag.log");
+		String toggle = props.getProperty("diagnosticToggleFile", "");
+		if (toggle.length() > 0)
+			toggleFile = new File(toggle);
+
+		int defaultRate = Math.max(1, Integer.parseInt(props.getProperty("diagnosticSampleRate", "1")));
+		Arrays.fill(sampleRates, defaultRate);
+		byte[] sensors = { WMR100Constants.SENSOR_TIMESTAMP, WMR100Constants.SENSOR_TEMP, WMR100Constants.SENSOR_WATERTEMP,
+				WMR100Constants.SENSOR_WIND, WMR100Constants.SENSOR_PRESSURE, WMR100Constants.SENSOR_RAIN, WMR100Constants.SENSOR_UV };
+		for (byte sensor : sensors) {
+			String rate = props.getProperty("diagnosticSampleRate." + WMRUtils.getSensorName(sensor));
+			if (rate != null)
+				sampleRates[sensor & 0xFF] = Math.max(1, Integer.parseInt(rate));
+		}
+		rawSampleRate = Math.max(1, Integer.parseInt(props.getProperty("diagnosticSampleRate." + RAW_NAME, Integer.toString(defaultRate))));
+
+		active = (tapOutput != tapOutputs.OFF && toggleFile == null);
+		if (tapOutput != tapOutputs.OFF)
+			WMRUtils.writeLogMessage("Diagnostic tap to %s%s", tapOutput == tapOutputs.FILE ? fileName : "MQTT",
+					toggleFile == null ? "" : String.format(" (active while %s exists)", toggleFile.getPath()));
+	}
+
+	/**
+	 * @return true if the tap is currently writing output
+	 */
+	public boolean isActive() {
+		if (tapOutput == tapOutputs.OFF)
+			return false;
+		if (toggleFile != null) {
+			long now = System.currentTimeMillis();
+			if (now - lastToggleCheck > TOGGLE_CHECK_INTERVAL) {
+				lastToggleCheck = now;
+				boolean on = toggleFile.exists();
+				if (on != active) {
+					WMRUtils.writeLogMessage("Diagnostic tap %s", on ? "enabled" : "disabled");
+					active = on;
+					if (!active)
+						close();
+				}
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Tap a raw HID report as read from the device.
+	 * @param report report bytes
+	 * @param len number of bytes read
+	 */
+	public void rawReport(byte[] report, int len) {
+		if (!isActive() || ++rawSampleCount < rawSampleRate)
+			return;
+		rawSampleCount = 0;
+		write(RAW_NAME, report, len);
+	}
+
+	/**
+	 * Tap an assembled WMR100 frame (without the 0xFF 0xFF terminator).
+	 * @param frame frame bytes
+	 * @param len frame length
+	 */
+	public void frame(byte[] frame, int len) {
+		if (len < 2 || !isActive())
+			return;
+		int sensor = frame[1] & 0xFF;
+		if (++sampleCounts[sensor] < sampleRates[sensor])
+			return;
+		sampleCounts[sensor] = 0;
+		write(WMRUtils.getSensorName(frame[1]), frame, len);
+	}
+
+	/**
+	 * Flush the file output if it hasn't been for a while, called by the data collector while the station is quiet.
+	 */
+	public void flush() {
+		flush(System.currentTimeMillis());
+	}
+
+	public void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				WMRUtils.writeErrMessage("Could not close diagnostic file: %s", e.getMessage());
+			}
+			out = null;
+		}
+	}
+
+	private void flush(long now) {
+		if (out == null || now - lastFlush < FLUSH_INTERVAL)
+			return;
+		lastFlush = now;
+		try {
+			out.flush();
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Diagnostic tap write error, disabling tap: %s", e.getMessage());
+			close();
+			tapOutput = tapOutputs.OFF;
+		}
+	}
+
+	private void write(String name, byte[] bytes, int len) {
+		long now = System.currentTimeMillis();
+		int pos = appendLong(now, 0);
+		line[pos++] = ' ';
+		for (int i = 0; i < name.length(); i++)
+			line[pos++] = (byte) name.charAt(i);
+		line[pos++] = ' ';
+		pos = WMRUtils.appendHex(bytes, 0, Math.min(len, WMR100Constants.MAX_PACKET), line, pos);
+		line[pos - 1] = '\n';
+
+		if (tapOutput == tapOutputs.MQTT) {
+			// the MQTT client holds on to the payload, so it needs its own copy
+			queue.publishDebug(name, Arrays.copyOf(line, pos - 1));
+			return;
+		}
+		try {
+			if (out == null)
+				out = new BufferedOutputStream(new FileOutputStream(fileName, true));
+			out.write(line, 0, pos);
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Diagnostic tap write error, disabling tap: %s", e.getMessage());
+			close();
+			tapOutput = tapOutputs.OFF;
+			return;
+		}
+		flush(now);
+	}
+
+	private int appendLong(long value, int pos) {
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		while (n > 0)
+			line[pos++] = digits[--n];
+		return pos;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * FrameAssembler
+ * Assembles WMR100 command frames from the bytes of successive HID reports. A frame ends with 0xFF 0xFF.
+ * Used by the live DataCollector and by offline reprocessing of captured raw reports.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+public class FrameAssembler {
+	private byte[] data = new byte[WMR100Constants.MAX_PACKET];
+	private int datalen = 0;
+
+	/**
+	 * Add the payload bytes of one HID report (first byte of the report is the payload length).
+	 * Completed frames are passed to the listener as they are found.
+	 * @param report HID report
+	 * @param listener receives completed frames
+	 * @return false if the report is malformed
+	 */
+	public boolean addReport(byte[] report, FrameListener listener) {
+		int len = report[0];
+		if (len < 0 || len > WMR100Constants.PACKET_LENGTH - 2) {
+			WMRUtils.writeErrMessage("Bad frame size!");
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (datalen == data.length) {
+				WMRUtils.writeErrMessage("Frame too long, discarding %d bytes", datalen);
+				datalen = 0;
+			}
+			data[datalen++] = report[1+i];
+			// completed a command?
+			if (datalen > 1 && data[datalen-1] == (byte)0xFF && data[datalen-2] == (byte)0xFF) {
+				// skip empty/malformed commands
+				if (datalen > 3)
+					listener.frame(data, datalen-2);
+				datalen = 0;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drop any partially assembled frame
+	 */
+	public void reset() {
+		datalen = 0;
+	}
+
+	public interface FrameListener {
+		/**
+		 * @param frame frame bytes, only valid for the duration of the call
+		 * @param len frame length without the 0xFF 0xFF terminator
+		 */
+		void frame(byte[] frame, int len);
+	}
+}
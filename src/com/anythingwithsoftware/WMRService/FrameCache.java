@@ -0,0 +1,77 @@
+/* 
+ * FrameCache
+ * Remembers the last frame seen for each sensor/channel, so frames the station simply repeats (UV, pressure, battery
+ * states, ...) can skip validation, decoding and the data queue.
+ * A cached frame is only trusted for maxAge msec: after that an identical frame is decoded again, so values held
+ * back by the data queue throttling (or depending on other sensors, like wind chill) still get refreshed.
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+public class FrameCache {
+	static final int SLOTS = 256 * 16;	// sensor byte x channel
+	private byte[][] frames = new byte[SLOTS][];
+	private int[] lengths = new int[SLOTS];
+	private long[] decoded = new long[SLOTS];
+	private long maxAge;
+	private volatile long lookups = 0;
+	private volatile long hits = 0;
+
+	/**
+	 * @param maxAge msec a cached frame stays valid
+	 */
+	public FrameCache(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @return index of the sensor/channel a frame comes from, 0..SLOTS-1
+	 */
+	public static int getSlot(byte[] frame) {
+		// channel is the low nibble of the 3rd byte for the multi-channel temperature sensors, 0 for the others
+		int channel = (frame[1] == WMR100Constants.SENSOR_TEMP || frame[1] == WMR100Constants.SENSOR_WATERTEMP ? frame[2] & 0x0F : 0);
+		return getSlot(frame[1], channel);
+	}
+
+	public static int getSlot(byte sensor, int channel) {
+		return ((sensor & 0xFF) << 4) | (channel & 0x0F);
+	}
+
+	/**
+	 * Check a frame against the last one from the same sensor/channel, and remember it if it's new.
+	 * @param frame frame bytes (without the 0xFF 0xFF terminator)
+	 * @param len frame length
+	 * @param now current time (msec)
+	 * @return true if the frame is identical to the cached one, and doesn't need to be decoded
+	 */
+	public boolean isDuplicate(byte[] frame, int len, long now) {
+		if (len < 3)
+			return false;
+		++lookups;
+		int slot = getSlot(frame);
+		byte[] cached = frames[slot];
+		if (cached != null && lengths[slot] == len && now - decoded[slot] < maxAge) {
+			int i = 0;
+			while (i < len && cached[i] == frame[i])
+				++i;
+			if (i == len) {
+				++hits;
+				return true;
+			}
+		}
+		if (cached == null)
+			cached = frames[slot] = new byte[WMR100Constants.MAX_PACKET];
+		System.arraycopy(frame, 0, cached, 0, len);
+		lengths[slot] = len;
+		decoded[slot] = now;
+		return false;
+	}
+
+	public long getLookups() { return lookups; }
+	public long getHits() { return hits; }
+	public void resetCounts() {
+		lookups = 0;
+		hits = 0;
+	}
+}
@@ -0,0 +1,132 @@
+/* 
+ * HidTransport
+ * WMR100 attached as a USB device through the HID interface
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import org.hid4java.HidDevice;
+import org.hid4java.HidException;
+import org.hid4java.HidManager;
+import org.hid4java.HidServices;
+import org.hid4java.HidServicesListener;
+import org.hid4java.event.HidServicesEvent;
+
+public class HidTransport implements WMRTransport, HidServicesListener {
+	private HidServices hidServices = null;
+	private HidDevice wmr = null;
+	private Listener listener = null;
+	private boolean reportedMissing = false;
+
+	@Override
+	public String getName() { return "USB HID"; }
+
+	@Override
+	public void setListener(Listener listener) { this.listener = listener; }
+
+	@Override
+	public boolean open() {
+		try {
+			// the HID services are kept for the life of the transport so hotplug events keep coming
+			if (hidServices == null) {
+				hidServices = HidManager.getHidServices();
+				hidServices.addHidServicesListener(this);
+			}
+			// find the WMR as a HID device
+			wmr = hidServices.getHidDevice(WMR100Constants.DEFAULT_STATION_VENDOR, WMR100Constants.DEFAULT_STATION_PRODUCT, null);
+			if (wmr == null) {
+				// only list the attached devices once, not on every retry
+				if (!reportedMissing) {
+					WMRUtils.writeErrMessage("WMR100 not found! Attached devices: ");
+					for (HidDevice hidDevice : hidServices.getAttachedHidDevices()) {
+						System.err.println(hidDevice.toString());
+					}
+					reportedMissing = true;
+				}
+				return false;
+			}
+			reportedMissing = false;
+			if (!wmr.isOpen() && !wmr.open()) {
+				WMRUtils.writeErrMessage("Unable to open WMR100: %s", wmr.getLastErrorMessage());
+				wmr = null;
+				return false;
+			}
+
+			// Send the initialize message to WMR
+			if (wmr.write(WMR100Constants.STATION_INITIALIZATION, WMR100Constants.STATION_INITIALIZATION.length, (byte) 0) == -1) {
+				WMRUtils.writeErrMessage("WMR initialization error: %s", wmr.getLastErrorMessage());
+			}
+			return true;
+		} catch (HidException e) {
+			WMRUtils.writeErrMessage("HID exception: %s", e.getMessage());
+			e.printStackTrace(System.err);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isOpen() { return wmr != null && wmr.isOpen(); }
+
+	@Override
+	public int read(byte[] report, int timeout) {
+		return wmr.read(report, timeout);
+	}
+
+	@Override
+	public String getLastErrorMessage() {
+		return (wmr != null ? wmr.getLastErrorMessage() : "not open");
+	}
+
+	@Override
+	public void close() {
+		if (wmr != null && wmr.isOpen()) {
+			try {
+				wmr.close();
+				WMRUtils.writeLogMessage("WMR100 device closed.");
+			} catch (Exception e) {
+				WMRUtils.writeErrMessage("Could not properly close WMR device");
+			}
+		}
+		wmr = null;
+	}
+
+	@Override
+	public void shutdown() {
+		close();
+		if (hidServices != null) {
+			hidServices.removeUsbServicesListener(this);
+			hidServices.shutdown();
+			hidServices = null;
+		}
+	}
+
+	// *********************************************************************************************
+	// *********************************************************************************************
+	// handle HID events
+
+	private static boolean isWMR(HidServicesEvent event) {
+		return event.getHidDevice().getVendorId() == WMR100Constants.DEFAULT_STATION_VENDOR && event.getHidDevice().getProductId() == WMR100Constants.DEFAULT_STATION_PRODUCT;
+	}
+
+	@Override
+	public void hidDeviceAttached(HidServicesEvent event) {
+		if (isWMR(event) && listener != null) {
+			listener.transportAvailable(this);
+		}
+	}
+
+	@Override
+	public void hidDeviceDetached(HidServicesEvent event) {
+		if (isWMR(event) && listener != null) {
+			listener.transportLost(this, "device detached");
+		}
+	}
+
+	@Override
+	public void hidFailure(HidServicesEvent event) {
+		if (listener != null) {
+			listener.transportLost(this, String.format("HID failure: %s", event.toString()));
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * PayloadEncoder
+ * Turns item values into MQTT message payloads. Three formats are supported:
+ *   text   - the value's toString() (original behavior)
+ *   fixed  - numbers written with a fixed number of decimals, NaN/infinite values sent as an empty payload
+ *   binary - all the item values of one WMR100 command packed into a single compact frame, laid out according
+ *            to a versioned schema (see getSchema()) which is published on a metadata topic
+ * The encoder reuses its internal buffers between calls, so it is not thread safe.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PayloadEncoder {
+
+	public enum payloadFormats {
+		TEXT,
+		FIXED,
+		BINARY
+	};
+
+	// binary frame schema, bump the version whenever fields are added or their encoding changes
+	static final int SCHEMA_VERSION = 1;
+	static final byte TYPE_FLOAT = 'f';		// 4 byte IEEE float
+	static final byte TYPE_SHORT = 's';		// 2 byte signed integer
+	static final byte TYPE_BOOLEAN = 'b';	// 1 byte, 1=true
+	static final byte TYPE_STRING = 't';	// 1 byte length followed by UTF-8 bytes
+	static final String[] SCHEMA_ITEMS = {
+			WMR100Constants.ITEM_TEMPERATURE, WMR100Constants.ITEM_HUMIDITY, WMR100Constants.ITEM_HEATINDEX,
+			WMR100Constants.ITEM_DEWPOINT, WMR100Constants.ITEM_WINDCHILL, WMR100Constants.ITEM_TEMPERATURE_BATTERY,
+			WMR100Constants.ITEM_WIND_DIRECTION, WMR100Constants.ITEM_WIND_COMPASSDIRECTION, WMR100Constants.ITEM_WIND_GUST,
+			WMR100Constants.ITEM_WIND_SPEED, WMR100Constants.ITEM_WIND_BEAUFORTSCALE, WMR100Constants.ITEM_WIND_BATTERY,
+			WMR100Constants.ITEM_PRESSURE, WMR100Constants.ITEM_RAIN_RATE, WMR100Constants.ITEM_RAIN_LASTHOUR,
+			WMR100Constants.ITEM_RAIN_LAST24HOURS, WMR100Constants.ITEM_RAIN_BATTERY, WMR100Constants.ITEM_UVINDEX,
+			WMR100Constants.ITEM_UVDESCRIPTION, WMR100Constants.ITEM_UV_BATTERY, WMR100Constants.ITEM_RFSIGNAL,
+			WMR100Constants.ITEM_STATIONPOWER, WMR100Constants.ITEM_STATIONBATTERY };
+	static final byte[] SCHEMA_TYPES = {
+			TYPE_FLOAT, TYPE_SHORT, TYPE_FLOAT,
+			TYPE_FLOAT, TYPE_FLOAT, TYPE_BOOLEAN,
+			TYPE_SHORT, TYPE_STRING, TYPE_FLOAT,
+			TYPE_FLOAT, TYPE_STRING, TYPE_BOOLEAN,
+			TYPE_FLOAT, TYPE_FLOAT, TYPE_FLOAT,
+			TYPE_FLOAT, TYPE_BOOLEAN, TYPE_SHORT,
+			TYPE_STRING, TYPE_BOOLEAN, TYPE_STRING,
+			TYPE_BOOLEAN, TYPE_BOOLEAN };
+	static final int MAX_FRAME = 256;
+	static final int MAX_PRECISION = 6;
+	private static final long[] POW10 = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+	private payloadFormats format;
+	private int precision;
+	private final StringBuilder text = new StringBuilder(32);
+	private final byte[] textBytes = new byte[64];
+	private final ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME);
+	private int fieldCountPos = 0;
+	private int fieldCount = 0;
+	private boolean inFrame = false;
+	// full item name (e.g. "temperature/1") -> schema field id
+	private final Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+
+	public PayloadEncoder(payloadFormats format, int precision) {
+		this.format = format;
+		this.precision = Math.max(0, Math.min(MAX_PRECISION, precision));
+	}
+
+	public payloadFormats getFormat() { return format; }
+
+	/**
+	 * Encode a single item value as a text payload (text or fixed format).
+	 * @param value item value
+	 * @return payload bytes, owned by the caller
+	 */
+	public byte[] encodeValue(Object value) {
+		text.setLength(0);
+		if (format == payloadFormats.FIXED && (value instanceof Double || value instanceof Float)) {
+			double d = ((Number) value).doubleValue();
+			// no meaningful value (e.g. wind chill above 10C), an empty payload clears the retained topic
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				return new byte[0];
+			appendFixed(text, d, precision);
+		} else {
+			text.append(value);
+		}
+		return toBytes(text);
+	}
+
+	/**
+	 * Start a binary frame for one WMR100 command.
+	 * @param sensor sensor type (WMR100Constants.SENSOR_ constants)
+	 * @param channel sensor channel, 0 for single channel sensors
+	 * @param timestamp time (msec) the command was received
+	 */
+	public void beginFrame(byte sensor, int channel, long timestamp) {
+		frame.clear();
+		frame.put((byte) SCHEMA_VERSION);
+		frame.put(sensor);
+		frame.put((byte) channel);
+		frame.putLong(timestamp);
+		fieldCountPos = frame.position();
+		frame.put((byte) 0);
+		fieldCount = 0;
+		inFrame = true;
+	}
+
+	public boolean isInFrame() { return inFrame; }
+
+	/**
+	 * Add an item value to the current binary frame.
+	 * @param item item name, with or without a "/channel" suffix
+	 * @param value item value
+	 * @return false if the item is not part of the schema or doesn't fit in the frame
+	 */
+	public boolean addField(String item, Object value) {
+		if (!inFrame)
+			return false;
+		int id = getFieldId(item);
+		if (id < 0) {
+			WMRUtils.writeErrMessage("Item %s is not in the binary frame schema", item);
+			return false;
+		}
+		if (frame.remaining() < 2 + 4)
+			return false;
+		frame.put((byte) id);
+		switch (SCHEMA_TYPES[id]) {
+		case TYPE_FLOAT:
+			frame.putFloat(((Number) value).floatValue());
+			break;
+		case TYPE_SHORT:
+			frame.putShort(((Number) value).shortValue());
+			break;
+		case TYPE_BOOLEAN:
+			frame.put((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+			break;
+		case TYPE_STRING:
+			String s = value.toString();
+			int len = Math.min(s.length(), Math.min(255, frame.remaining() - 1));
+			frame.put((byte) len);
+			for (int i = 0; i < len; i++)
+				frame.put((byte) s.charAt(i));	// all WMR100 strings are ASCII
+			break;
+		}
+		++fieldCount;
+		return true;
+	}
+
+	/**
+	 * Finish the current binary frame.
+	 * @return frame bytes (owned by the caller), or null if the frame has no fields
+	 */
+	public byte[] endFrame() {
+		inFrame = false;
+		if (fieldCount == 0)
+			return null;
+		frame.put(fieldCountPos, (byte) fieldCount);
+		return Arrays.copyOf(frame.array(), frame.position());
+	}
+
+	/**
+	 * @return human readable description of the binary frame layout, published on the schema topic
+	 */
+	public static String getSchema() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("version %d%n", SCHEMA_VERSION));
+		sb.append(String.format("header: version(u8) sensor(u8) channel(u8) timestamp(s64 epoch msec) fields(u8)%n"));
+		sb.append(String.format("field: id(u8) value, big endian; f=float32 s=int16 b=u8 boolean t=u8 length+ASCII%n"));
+		for (int i = 0; i < SCHEMA_ITEMS.length; i++)
+			sb.append(String.format("%d %s %c%n", i, SCHEMA_ITEMS[i], (char) SCHEMA_TYPES[i]));
+		return sb.toString();
+	}
+
+	private int getFieldId(String item) {
+		Integer id = fieldIds.get(item);
+		if (id == null) {
+			int slash = item.indexOf('/');
+			String base = (slash < 0 ? item : item.substring(0, slash));
+			id = Integer.valueOf(-1);
+			for (int i = 0; i < SCHEMA_ITEMS.length; i++) {
+				if (SCHEMA_ITEMS[i].equals(base)) {
+					id = Integer.valueOf(i);
+					break;
+				}
+			}
+			fieldIds.put(item, id);
+		}
+		return id.intValue();
+	}
+
+	private byte[] toBytes(CharSequence cs) {
+		int len = cs.length();
+		if (len > textBytes.length)
+			return cs.toString().getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < len; i++) {
+			char c = cs.charAt(i);
+			if (c > 0x7F)
+				return cs.toString().getBytes(StandardCharsets.UTF_8);
+			textBytes[i] = (byte) c;
+		}
+		return Arrays.copyOf(textBytes, len);
+	}
+
+	/**
+	 * Append a double with a fixed number of decimals, without going through String.format
+	 */
+	static void appendFixed(StringBuilder sb, double value, int precision) {
+		long scale = POW10[precision];
+		long scaled = Math.round(Math.abs(value) * scale);
+		if (value < 0 && scaled != 0)
+			sb.append('-');
+		sb.append(scaled / scale);
+		if (precision > 0) {
+			sb.append('.');
+			long frac = scaled % scale;
+			for (long d = scale / 10; d > 0; d /= 10)
+				sb.append((char) ('0' + (frac / d) % 10));
+		}
+	}
+}
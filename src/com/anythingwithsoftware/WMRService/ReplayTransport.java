@@ -0,0 +1,112 @@
+/* 
+ * ReplayTransport
+ * Plays back the raw reports of a diagnostic tap capture file as if they came from a station, keeping the original
+ * timing (scaled by the replay speed, 0 for as fast as possible). When the end of the file is reached the transport
+ * reports an error, so reconnecting starts the capture over.
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class ReplayTransport implements WMRTransport {
+	private String fileName;
+	private double speed;
+	private BufferedReader reader = null;
+	private String pending = null;
+	private long firstCaptured = -1;
+	private long started = 0;
+	private String lastError = "";
+
+	public ReplayTransport(String fileName, double speed) {
+		this.fileName = fileName;
+		this.speed = speed;
+	}
+
+	@Override
+	public String getName() { return String.format("replay of %s", fileName); }
+
+	@Override
+	public void setListener(Listener listener) { }
+
+	@Override
+	public boolean open() {
+		try {
+			reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.US_ASCII);
+			pending = null;
+			firstCaptured = -1;
+			started = System.currentTimeMillis();
+			return true;
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Unable to open %s: %s", fileName, e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isOpen() { return reader != null; }
+
+	@Override
+	public int read(byte[] report, int timeout) {
+		try {
+			while (pending == null) {
+				String line = reader.readLine();
+				if (line == null) {
+					lastError = "end of capture";
+					return -1;
+				}
+				int sp = line.indexOf(' ');
+				if (sp > 0 && line.startsWith(DiagnosticTap.RAW_NAME + " ", sp + 1))
+					pending = line;
+			}
+
+			int sp = pending.indexOf(' ');
+			long captured = Long.parseLong(pending.substring(0, sp));
+			if (firstCaptured < 0)
+				firstCaptured = captured;
+			if (speed > 0) {
+				long wait = started + (long) ((captured - firstCaptured) / speed) - System.currentTimeMillis();
+				if (wait > timeout) {
+					Thread.sleep(timeout);
+					return 0;
+				}
+				if (wait > 0)
+					Thread.sleep(wait);
+			}
+			int len = WMRUtils.parseHex(pending, pending.indexOf(' ', sp + 1) + 1, report);
+			pending = null;
+			return len;
+		} catch (IOException | RuntimeException e) {
+			lastError = e.toString();
+			return -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	@Override
+	public String getLastErrorMessage() { return lastError; }
+
+	@Override
+	public void close() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				WMRUtils.writeErrMessage("Could not properly close %s", fileName);
+			}
+		}
+		reader = null;
+	}
+
+	@Override
+	public void shutdown() {
+		close();
+	}
+}
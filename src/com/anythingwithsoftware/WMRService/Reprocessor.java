@@ -0,0 +1,419 @@
+/*
+ * Reprocessor
+ * Batch mode: regenerates item values from captured raw data (the files written by the diagnostic tap), e.g. after
+ * changing units or formulas. Work is spread over all cores with fork/join: capture files are processed in parallel
+ * and files with assembled frames that are larger than the chunk size are split into line aligned chunks, so a
+ * single long running capture is decoded in parallel too. Each chunk is decoded in order through the same
+ * WMR100Command validation and decoding as the live service; the wind speed used for wind chill is seeded from the
+ * last wind frame before the chunk. Files with raw reports only are decoded as a whole, frames can span reports.
+ * Output is one file per item for every input file, either CSV ("timestamp,value" with the timestamp in epoch msec)
+ * or binary (big endian epoch msec long followed by the value as a double, text items are skipped). Chunks write
+ * their own part files, which are joined in order once all chunks are done.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class Reprocessor extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	static final int SEED_WINDOW = 64 * 1024;	// bytes before a chunk searched for the last wind frame
+	static final String PART_SUFFIX = ".part";
+	static final int MAX_LINE = 48 + 3 * WMR100Constants.MAX_PACKET;	// longest line written by the tap
+	private static final String WIND_NAME = WMRUtils.getSensorName(WMR100Constants.SENSOR_WIND);
+
+	/**
+	 * Line aligned part of a capture file: the lines that start at or after start and before end.
+	 */
+	private static class Chunk {
+		final Path file;
+		final String name;
+		final Path outDir;
+		final boolean frames;	// decode assembled frames, otherwise raw reports
+		final int index;
+		final boolean split;	// file has more than one chunk
+		final long start;
+		final long end;
+		long frameCnt = 0;		// set by the task decoding the chunk
+		Chunk(Path file, String name, Path outDir, boolean frames, int index, boolean split, long start, long end) {
+			this.file = file;
+			this.name = name;
+			this.outDir = outDir;
+			this.frames = frames;
+			this.index = index;
+			this.split = split;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private final Properties props;
+	private final List<Chunk> chunks;
+	private final int from;
+	private final int to;
+
+	private Reprocessor(Properties props, List<Chunk> chunks, int from, int to) {
+		this.props = props;
+		this.chunks = chunks;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Reprocess all the capture files in a directory (and its subdirectories).
+	 * @param props service configuration (units, payload precision, reprocessFormat, reprocessChunkSize)
+	 * @param input directory with capture files
+	 * @param output directory for the item files, one subdirectory per capture file
+	 * @return false if the capture directory could not be read
+	 */
+	public static boolean reprocess(Properties props, String input, String output) {
+		Path inputDir = Paths.get(input);
+		Path outputDir = Paths.get(output);
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(inputDir)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Unable to read capture directory %s: %s", input, e.getMessage());
+			return false;
+		}
+
+		long start = System.currentTimeMillis();
+		long chunkSize = Math.max(1, Long.parseLong(props.getProperty("reprocessChunkSize", "16"))) * 1024 * 1024;
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (Path file : files) {
+			try {
+				chunks.addAll(split(file, inputDir, outputDir, chunkSize));
+			} catch (IOException e) {
+				WMRUtils.writeErrMessage("Unable to reprocess %s: %s", file, e.getMessage());
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		WMRUtils.writeLogMessage("Reprocessing %d files (%d chunks) from %s using %d threads", files.size(), chunks.size(),
+				input, pool.getParallelism());
+		try {
+			pool.invoke(new Reprocessor(props, chunks, 0, chunks.size()));
+		} finally {
+			pool.shutdown();
+		}
+
+		// chunks of a file are consecutive
+		long frameCnt = 0;
+		for (int i = 0; i < chunks.size(); ) {
+			Chunk first = chunks.get(i);
+			long frames = 0;
+			for (; i < chunks.size() && chunks.get(i).file.equals(first.file); i++)
+				frames += chunks.get(i).frameCnt;
+			if (first.split) {
+				try {
+					joinParts(first.outDir);
+				} catch (IOException e) {
+					WMRUtils.writeErrMessage("Unable to join the output of %s: %s", first.name, e.getMessage());
+				}
+			}
+			WMRUtils.writeLogMessage("Reprocessed %s: %d frames", first.name, frames);
+			frameCnt += frames;
+		}
+		WMRUtils.writeLogMessage("Reprocessed %d frames in %d msec", frameCnt, System.currentTimeMillis() - start);
+		return true;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > 1) {
+			int mid = (from + to) >>> 1;
+			invokeAll(new Reprocessor(props, chunks, from, mid), new Reprocessor(props, chunks, mid, to));
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			Chunk c = chunks.get(i);
+			try {
+				processChunk(c);
+			} catch (IOException | RuntimeException e) {
+				WMRUtils.writeErrMessage("Unable to reprocess %s (chunk %d): %s", c.name, c.index, e.getMessage());
+			}
+		}
+	}
+
+	private static List<Chunk> split(Path file, Path inputDir, Path outputDir, long chunkSize) throws IOException {
+		// files with assembled frames are decoded from those, raw reports are only used when there's nothing else
+		boolean hasFrames = false;
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty() && !isRaw(line)) {
+					hasFrames = true;
+					break;
+				}
+			}
+		}
+
+		// named after the whole file name, rotated captures (diag.log.1, diag.log.2) must not share a directory
+		String name = inputDir.relativize(file).toString();
+		Path outDir = outputDir.resolve(name);
+		Files.createDirectories(outDir);
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		long size = Files.size(file);
+		if (!hasFrames || size <= chunkSize) {
+			chunks.add(new Chunk(file, name, outDir, hasFrames, 0, false, 0, Long.MAX_VALUE));
+			return chunks;
+		}
+		int n = (int) ((size + chunkSize - 1) / chunkSize);
+		for (int i = 0; i < n; i++)
+			chunks.add(new Chunk(file, name, outDir, true, i, true, i * chunkSize, (i == n - 1 ? Long.MAX_VALUE : (i + 1) * chunkSize)));
+		return chunks;
+	}
+
+	private void processChunk(Chunk c) throws IOException {
+		CaptureWriter writer = new CaptureWriter(props, c.outDir, c.split ? String.format("%s%05d", PART_SUFFIX, c.index) : "");
+		FrameAssembler assembler = new FrameAssembler();
+		byte[] bytes = new byte[WMR100Constants.MAX_PACKET];
+		long frames = 0;
+		try {
+			if (c.start > 0)
+				seedWindSpeed(c, writer, bytes);
+			FileChannel ch = FileChannel.open(c.file, StandardOpenOption.READ);
+			// start on the last byte of the previous chunk, so a line starting exactly on the chunk boundary isn't skipped
+			long pos = Math.max(0, c.start - 1);
+			ch.position(pos);
+			// the tap writes ASCII lines ending in a single '\n', so positions are counted from the line lengths
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.US_ASCII))) {
+				String line;
+				if (c.start > 0) {
+					// rest of the line started in the previous chunk, it is decoded there
+					if ((line = in.readLine()) == null)
+						return;
+					pos += line.length() + 1;
+				}
+				while (pos < c.end && (line = in.readLine()) != null) {
+					pos += line.length() + 1;
+					if (decode(c, line, writer, assembler, bytes))
+						++frames;
+				}
+			}
+		} finally {
+			writer.closeOutputs();
+			c.frameCnt = frames + writer.getFrameCount();
+		}
+	}
+
+	/**
+	 * Decode one capture line into the writer.
+	 * @return true if a captured frame was decoded
+	 */
+	private static boolean decode(Chunk c, String line, CaptureWriter writer, FrameAssembler assembler, byte[] bytes) {
+		if (line.isEmpty() || isRaw(line) == c.frames)
+			return false;
+		int sp = line.indexOf(' ');
+		long timestamp;
+		int len;
+		try {
+			timestamp = Long.parseLong(line.substring(0, sp));
+			len = WMRUtils.parseHex(line, line.indexOf(' ', sp + 1) + 1, bytes);
+		} catch (RuntimeException e) {
+			WMRUtils.writeErrMessage("%s: skipping malformed line \"%s\"", c.name, line);
+			return false;
+		}
+		writer.setTimestamp(timestamp);
+		if (!c.frames) {
+			assembler.addReport(bytes, writer);
+			return false;
+		}
+		new WMR100Command(bytes, len, timestamp).updateDataQueue(writer);
+		return true;
+	}
+
+	/**
+	 * Decode (without writing) the wind frames just before the chunk, so wind chill starts from the right wind speed.
+	 */
+	private static void seedWindSpeed(Chunk c, CaptureWriter writer, byte[] bytes) throws IOException {
+		long from = Math.max(0, c.start - SEED_WINDOW);
+		// up to the end of the line running into the chunk, it belongs to the previous chunk
+		ByteBuffer buf = ByteBuffer.allocate((int) (c.start - from) + MAX_LINE);
+		try (FileChannel ch = FileChannel.open(c.file, StandardOpenOption.READ)) {
+			while (buf.hasRemaining() && ch.read(buf, from + buf.position()) > 0)
+				;
+		}
+		String window = new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+		int end = window.indexOf('\n', (int) (c.start - from - 1));
+		if (end < 0)
+			return;
+		String[] lines = window.substring(0, end).split("\n", -1);
+		writer.setMuted(true);
+		// the first line may be cut off by the window
+		for (int i = (from == 0 ? 0 : 1); i < lines.length; i++) {
+			String line = lines[i];
+			int sp = line.indexOf(' ');
+			if (sp > 0 && line.startsWith(WIND_NAME + " ", sp + 1))
+				decode(c, line, writer, null, bytes);
+		}
+		writer.setMuted(false);
+	}
+
+	/**
+	 * Join the part files written by the chunks of a capture file into one file per item, in chunk order.
+	 */
+	private static void joinParts(Path outDir) throws IOException {
+		Map<String, List<Path>> parts = new TreeMap<String, List<Path>>();
+		try (Stream<Path> list = Files.list(outDir)) {
+			for (Path p : list.sorted().collect(Collectors.toList())) {
+				String fileName = p.getFileName().toString();
+				int i = fileName.lastIndexOf(PART_SUFFIX);
+				if (i > 0)
+					parts.computeIfAbsent(fileName.substring(0, i), k -> new ArrayList<Path>()).add(p);
+			}
+		}
+		for (Map.Entry<String, List<Path>> e : parts.entrySet()) {
+			boolean csv = e.getKey().endsWith(".csv");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outDir.resolve(e.getKey())))) {
+				boolean first = true;
+				for (Path p : e.getValue()) {
+					try (InputStream in = new BufferedInputStream(Files.newInputStream(p))) {
+						// every csv part starts with the header line, keep only the first one
+						if (csv && !first) {
+							int b;
+							while ((b = in.read()) >= 0 && b != '\n')
+								;
+						}
+						byte[] b = new byte[8192];
+						int n;
+						while ((n = in.read(b)) > 0)
+							out.write(b, 0, n);
+					}
+					first = false;
+				}
+			}
+			for (Path p : e.getValue())
+				Files.delete(p);
+		}
+	}
+
+	private static boolean isRaw(String line) {
+		int sp = line.indexOf(' ');
+		return line.startsWith(DiagnosticTap.RAW_NAME + " ", sp + 1);
+	}
+
+	/**
+	 * Receives the decoded item values of one capture file (or chunk) and writes them to per item files.
+	 */
+	private static class CaptureWriter implements DataSink, FrameAssembler.FrameListener {
+		private final Path outDir;
+		private final String suffix;	// added to the item file names, for the part files of a chunk
+		private final boolean binary;
+		private final PayloadEncoder encoder;
+		private final DataQueue.tempUnits tempUnit;
+		private final DataQueue.windSpeedUnits windSpeedUnit;
+		private final DataQueue.pressureUnits pressureUnit;
+		private final DataQueue.rainUnits rainUnit;
+		private final Map<String, DataOutputStream> outputs = new HashMap<String, DataOutputStream>();
+		private double lastWindSpeed = 0;	// mps
+		private long timestamp = 0;
+		private long frameCnt = 0;
+		private boolean muted = false;
+
+		CaptureWriter(Properties props, Path outDir, String suffix) {
+			this.outDir = outDir;
+			this.suffix = suffix;
+			binary = props.getProperty("reprocessFormat", "").compareToIgnoreCase("binary") == 0;
+			encoder = new PayloadEncoder(PayloadEncoder.payloadFormats.FIXED, Integer.parseInt(props.getProperty("payloadPrecision", "2")));
+			tempUnit = DataQueue.parseTempUnit(props);
+			windSpeedUnit = DataQueue.parseWindSpeedUnit(props);
+			pressureUnit = DataQueue.parsePressureUnit(props);
+			rainUnit = DataQueue.parseRainUnit(props);
+		}
+
+		void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+		long getFrameCount() { return frameCnt; }
+		// while muted values are decoded but not written
+		void setMuted(boolean muted) { this.muted = muted; }
+
+		@Override
+		public DataQueue.tempUnits getTempUnit() { return tempUnit; }
+		@Override
+		public DataQueue.windSpeedUnits getWindSpeedUnit() { return windSpeedUnit; }
+		@Override
+		public DataQueue.pressureUnits getPressureUnit() { return pressureUnit; }
+		@Override
+		public DataQueue.rainUnits getRainUnit() { return rainUnit; }
+		@Override
+		public double getLastWindSpeed() { return lastWindSpeed; }
+		@Override
+		public void setLastWindSpeed(double mps) { lastWindSpeed = mps; }
+
+		// assembled from raw reports
+		@Override
+		public void frame(byte[] frame, int len) {
+			new WMR100Command(frame, len, timestamp).updateDataQueue(this);
+			++frameCnt;
+		}
+
+		@Override
+		public void beginFrame(byte sensor, int channel, long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public void endFrame() {
+		}
+
+		@Override
+		public void addValue(String item, Object value) {
+			if (muted || (binary && !(value instanceof Number || value instanceof Boolean)))
+				return;
+			try {
+				DataOutputStream out = outputs.get(item);
+				if (out == null) {
+					Path path = outDir.resolve(item.replace('/', '_') + (binary ? ".bin" : ".csv") + suffix);
+					out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+					if (!binary)
+						out.writeBytes(String.format("timestamp,%s\n", item));
+					outputs.put(item, out);
+				}
+				if (binary) {
+					out.writeLong(timestamp);
+					out.writeDouble(value instanceof Boolean ? (((Boolean) value).booleanValue() ? 1 : 0) : ((Number) value).doubleValue());
+				} else {
+					out.writeBytes(Long.toString(timestamp));
+					out.write(',');
+					out.write(encoder.encodeValue(value));
+					out.write('\n');
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(String.format("writing %s: %s", item, e.getMessage()), e);
+			}
+		}
+
+		void closeOutputs() throws IOException {
+			for (DataOutputStream out : outputs.values())
+				out.close();
+			outputs.clear();
+		}
+	}
+}
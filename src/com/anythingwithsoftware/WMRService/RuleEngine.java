@@ -0,0 +1,162 @@
+/* 
+ * RuleEngine
+ * Threshold alerts evaluated on every decoded reading (before any throttling), so short events like gusts are not
+ * missed. Rules are declared in the properties as
+ *   rule.<name>.item=<item, e.g. windGust or temperature/1>
+ *   rule.<name>.above=<threshold> or rule.<name>.below=<threshold>   (in the configured units)
+ *   rule.<name>.hysteresis=<amount the value must move back past the threshold to clear the alert, default 0>
+ *   rule.<name>.duration=<seconds the condition must hold before the alert is raised, default 0>
+ * Rules are compiled once and indexed by item, so a reading only looks at the rules for its item.
+ * Rule state is not kept across restarts: the first time a rule has settled (is not waiting out its duration) after
+ * startup its current state is published, so a retained alert that cleared while the service was down is cleared.
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class RuleEngine {
+	static final String PREFIX = "rule.";
+
+	static class Rule {
+		final String name;
+		final String item;
+		final boolean above;
+		final double threshold;
+		final double hysteresis;
+		final long duration;	// msec
+		boolean active = false;
+		boolean published = false;	// state published since startup
+		long pendingSince = -1;
+		int pendingSlot = -1;	// sensor/channel (FrameCache slot) of the readings the rule is waiting on
+
+		Rule(String name, String item, boolean above, double threshold, double hysteresis, long duration) {
+			this.name = name;
+			this.item = item;
+			this.above = above;
+			this.threshold = threshold;
+			this.hysteresis = hysteresis;
+			this.duration = duration;
+		}
+
+		/**
+		 * @return true if the alert was raised or cleared by this reading
+		 */
+		boolean update(double value, long timestamp) {
+			if (!active) {
+				if (above ? value > threshold : value < threshold) {
+					if (pendingSince < 0)
+						pendingSince = timestamp;
+					if (timestamp - pendingSince >= duration) {
+						active = true;
+						pendingSince = -1;
+						return true;
+					}
+				} else {
+					pendingSince = -1;
+				}
+			} else if (above ? value < threshold - hysteresis : value > threshold + hysteresis) {
+				active = false;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private Map<String, Rule[]> rulesByItem = new HashMap<String, Rule[]>();
+	private DataQueue queue;
+	private int ruleCnt = 0;
+	// rules waiting for their duration to pass, per sensor/channel (FrameCache slot)
+	private int[] pendingCnt = new int[FrameCache.SLOTS];
+
+	public RuleEngine(Properties props, DataQueue q) {
+		queue = q;
+		Map<String, List<Rule>> rules = new HashMap<String, List<Rule>>();
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith(PREFIX) || !key.endsWith(".item"))
+				continue;
+			String name = key.substring(PREFIX.length(), key.length() - ".item".length());
+			Rule rule = compile(props, name);
+			if (rule == null)
+				continue;
+			List<Rule> list = rules.get(rule.item);
+			if (list == null) {
+				list = new ArrayList<Rule>();
+				rules.put(rule.item, list);
+			}
+			list.add(rule);
+			++ruleCnt;
+		}
+		for (Map.Entry<String, List<Rule>> e : rules.entrySet())
+			rulesByItem.put(e.getKey(), e.getValue().toArray(new Rule[e.getValue().size()]));
+		if (ruleCnt > 0)
+			WMRUtils.writeLogMessage("%d alert rules on %d items", ruleCnt, rulesByItem.size());
+	}
+
+	private static Rule compile(Properties props, String name) {
+		String p = PREFIX + name + ".";
+		String item = props.getProperty(p + "item", "").trim();
+		String above = props.getProperty(p + "above");
+		String below = props.getProperty(p + "below");
+		if (item.length() == 0 || (above == null) == (below == null)) {
+			WMRUtils.writeErrMessage("Alert rule %s needs an item and either an \"above\" or a \"below\" threshold", name);
+			return null;
+		}
+		try {
+			return new Rule(name, item, above != null, Double.parseDouble(above != null ? above : below),
+					Double.parseDouble(props.getProperty(p + "hysteresis", "0")),
+					(long) (Double.parseDouble(props.getProperty(p + "duration", "0")) * 1000));
+		} catch (NumberFormatException e) {
+			WMRUtils.writeErrMessage("Alert rule %s: bad number %s", name, e.getMessage());
+			return null;
+		}
+	}
+
+	public int getRuleCount() { return ruleCnt; }
+
+	/**
+	 * @param slot sensor/channel (FrameCache slot)
+	 * @return true if a rule on an item of this sensor/channel is waiting for its duration to pass, and needs to see
+	 * every reading
+	 */
+	public boolean hasPending(int slot) { return pendingCnt[slot] > 0; }
+
+	/**
+	 * Evaluate the rules for an item, publishing any alerts raised or cleared.
+	 * @param item item name
+	 * @param value item value, only numbers and booleans (1/0) are evaluated
+	 * @param timestamp time (msec) of the reading
+	 * @param slot sensor/channel (FrameCache slot) the reading comes from
+	 */
+	public void evaluate(String item, Object value, long timestamp, int slot) {
+		Rule[] rules = rulesByItem.get(item);
+		if (rules == null)
+			return;
+		double v;
+		if (value instanceof Number)
+			v = ((Number) value).doubleValue();
+		else if (value instanceof Boolean)
+			v = ((Boolean) value).booleanValue() ? 1 : 0;
+		else
+			return;
+		for (Rule rule : rules) {
+			boolean wasPending = rule.pendingSince >= 0;
+			boolean changed = rule.update(v, timestamp);
+			if (wasPending && rule.pendingSince < 0) {
+				--pendingCnt[rule.pendingSlot];
+			} else if (!wasPending && rule.pendingSince >= 0) {
+				rule.pendingSlot = slot;
+				++pendingCnt[slot];
+			}
+			if (changed || (!rule.published && rule.pendingSince < 0)) {
+				queue.publishAlert(rule.name, rule.active, changed, item, value);
+				rule.published = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * StreamServer
+ * Pushes item values to browsers and displays as Server-Sent Events (HTTP, text/event-stream), so they don't need
+ * to talk MQTT. Any GET request on the configured port starts an event stream; each value is sent as
+ *   event: <item>
+ *   data: <value>
+ * and new clients first get the latest value of every item.
+ * A single thread serves all clients with non-blocking NIO. Every update is encoded once and the same buffer is
+ * shared by all clients. A client that falls too far behind is disconnected (browsers reconnect on their own)
+ * rather than being allowed to hold up the data collection.
+ *
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class StreamServer extends Thread {
+	static final int MAX_REQUEST = 4096;
+	static final int MAX_UPDATES = 1024;
+	static final byte[] RESPONSE_OK = ("HTTP/1.1 200 OK\r\n" + "Content-Type: text/event-stream\r\n"
+			+ "Cache-Control: no-cache\r\n" + "Connection: keep-alive\r\n" + "Access-Control-Allow-Origin: *\r\n\r\n")
+			.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] RESPONSE_BAD_METHOD = ("HTTP/1.1 405 Method Not Allowed\r\n" + "Allow: GET\r\n"
+			+ "Content-Length: 0\r\n" + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	static final byte[] EVENT_PREFIX = "event: ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] DATA_PREFIX = "\ndata: ".getBytes(StandardCharsets.US_ASCII);
+
+	private int port;
+	private int maxClients;
+	private int maxQueued;
+	private volatile Selector selector = null;
+	private ServerSocketChannel server = null;
+	private List<Client> clients = new ArrayList<Client>();
+	// encoded events handed over from the data collection thread
+	private ArrayBlockingQueue<Update> updates = new ArrayBlockingQueue<Update>(MAX_UPDATES);
+	// latest event for each item, sent to new clients
+	private Map<String, ByteBuffer> latest = new LinkedHashMap<String, ByteBuffer>();
+	private volatile long droppedUpdates = 0;
+
+	private static class Update {
+		final String item;
+		final ByteBuffer event;
+		Update(String item, ByteBuffer event) {
+			this.item = item;
+			this.event = event;
+		}
+	}
+
+	private static class Client {
+		final SocketChannel channel;
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		boolean streaming = false;
+		boolean closeWhenSent = false;
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	public StreamServer(Properties props) {
+		super("StreamServer");
+		setDaemon(true);
+		port = Integer.parseInt(props.getProperty("streamPort", "0"));
+		maxClients = Integer.parseInt(props.getProperty("streamMaxClients", "500"));
+		maxQueued = Integer.parseInt(props.getProperty("streamMaxQueued", "256"));
+	}
+
+	/**
+	 * @return true if a stream port is configured
+	 */
+	public boolean isEnabled() { return port > 0; }
+
+	/**
+	 * Queue an item value for all connected clients. Never blocks: if the server thread can't keep up the update
+	 * is dropped.
+	 * @param item item name
+	 * @param payload item value as text
+	 */
+	public void publish(String item, byte[] payload) {
+		if (!isEnabled() || !isAlive())
+			return;
+		byte[] name = item.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer event = ByteBuffer.allocate(EVENT_PREFIX.length + name.length + DATA_PREFIX.length + payload.length + 2);
+		event.put(EVENT_PREFIX).put(name);
+		event.put(DATA_PREFIX).put(payload);
+		event.put((byte) '\n').put((byte) '\n');
+		event.flip();
+		if (updates.offer(new Update(item, event.asReadOnlyBuffer()))) {
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
+		} else {
+			++droppedUpdates;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			WMRUtils.writeLogMessage("Event stream listening on port %d", port);
+
+			while (!Thread.interrupted()) {
+				selector.select();
+				distributeUpdates();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Client c = (Client) key.attachment();
+					try {
+						if (key.isReadable())
+							read(c, key);
+						if (key.isValid() && key.isWritable())
+							write(c, key);
+					} catch (IOException e) {
+						drop(c, null);
+					}
+				}
+			}
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Event stream server exception: %s", e.getMessage());
+		} finally {
+			for (Client c : new ArrayList<Client>(clients))
+				drop(c, null);
+			try {
+				if (server != null)
+					server.close();
+				if (selector != null)
+					selector.close();
+			} catch (IOException e) {
+				WMRUtils.writeErrMessage("Could not close event stream server: %s", e.getMessage());
+			}
+			WMRUtils.writeLogMessage("Event stream stopped");
+		}
+	}
+
+	private void distributeUpdates() {
+		if (droppedUpdates > 0) {
+			WMRUtils.writeErrMessage("Event stream: %d updates dropped", droppedUpdates);
+			droppedUpdates = 0;
+		}
+		Update u;
+		while ((u = updates.poll()) != null) {
+			latest.put(u.item, u.event);
+			// backwards, enqueue() may drop the client
+			for (int i = clients.size() - 1; i >= 0; i--) {
+				Client c = clients.get(i);
+				if (c.streaming)
+					enqueue(c, u.event);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = server.accept();
+		if (ch == null)
+			return;
+		if (clients.size() >= maxClients) {
+			WMRUtils.writeErrMessage("Event stream: too many clients, refusing %s", ch.getRemoteAddress());
+			ch.close();
+			return;
+		}
+		ch.configureBlocking(false);
+		Client c = new Client(ch);
+		ch.register(selector, SelectionKey.OP_READ, c);
+		clients.add(c);
+	}
+
+	private void read(Client c, SelectionKey key) throws IOException {
+		if (c.streaming) {
+			// nothing more expected from the client, just watch for it going away
+			c.request.clear();
+			if (c.channel.read(c.request) < 0)
+				drop(c, null);
+			return;
+		}
+		if (c.channel.read(c.request) < 0) {
+			drop(c, null);
+			return;
+		}
+		if (!endOfHeaders(c.request)) {
+			if (!c.request.hasRemaining())
+				drop(c, "request too large");
+			return;
+		}
+		byte[] req = c.request.array();
+		if (c.request.position() < 4 || req[0] != 'G' || req[1] != 'E' || req[2] != 'T' || req[3] != ' ') {
+			c.closeWhenSent = true;
+			enqueue(c, ByteBuffer.wrap(RESPONSE_BAD_METHOD));
+			return;
+		}
+		c.streaming = true;
+		enqueue(c, ByteBuffer.wrap(RESPONSE_OK));
+		for (ByteBuffer event : latest.values())
+			enqueue(c, event);
+	}
+
+	private void write(Client c, SelectionKey key) throws IOException {
+		while (!c.out.isEmpty()) {
+			ByteBuffer b = c.out.peek();
+			c.channel.write(b);
+			if (b.hasRemaining())
+				break;
+			c.out.poll();
+		}
+		if (c.out.isEmpty()) {
+			if (c.closeWhenSent) {
+				drop(c, null);
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void enqueue(Client c, ByteBuffer event) {
+		if (c.out.size() >= maxQueued) {
+			drop(c, "slow consumer");
+			return;
+		}
+		// every client gets its own position on the shared buffer
+		c.out.add(event.duplicate());
+		SelectionKey key = c.channel.keyFor(selector);
+		if (c.out.size() == 1 && key != null && key.isValid()) {
+			try {
+				write(c, key);
+			} catch (IOException e) {
+				drop(c, null);
+			}
+		}
+	}
+
+	private void drop(Client c, String reason) {
+		if (!clients.remove(c))
+			return;
+		try {
+			if (reason != null)
+				WMRUtils.writeErrMessage("Event stream: dropping %s (%s)", c.channel.getRemoteAddress(), reason);
+			c.channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private static boolean endOfHeaders(ByteBuffer b) {
+		byte[] a = b.array();
+		for (int i = 3; i < b.position(); i++) {
+			if (a[i-3] == '\r' && a[i-2] == '\n' && a[i-1] == '\r' && a[i] == '\n')
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,96 @@
+/* 
+ * TcpTransport
+ * WMR100 reached through a serial-over-TCP bridge. The station initialization is sent to the bridge on connect, and
+ * the bridge is expected to stream back the station's data bytes (the HID report payloads, without the length byte). 
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+public class TcpTransport implements WMRTransport {
+	static final int CONNECT_TIMEOUT = 5000;
+
+	private String host;
+	private int port;
+	private Socket socket = null;
+	private InputStream in = null;
+	private String lastError = "";
+
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public String getName() { return String.format("TCP bridge %s:%d", host, port); }
+
+	// no hotplug events, reconnecting is left to the retries
+	@Override
+	public void setListener(Listener listener) { }
+
+	@Override
+	public boolean open() {
+		try {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			in = socket.getInputStream();
+			socket.getOutputStream().write(WMR100Constants.STATION_INITIALIZATION);
+			return true;
+		} catch (IOException e) {
+			WMRUtils.writeErrMessage("Unable to connect to %s: %s", getName(), e.getMessage());
+			close();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isOpen() { return socket != null && socket.isConnected() && !socket.isClosed(); }
+
+	@Override
+	public int read(byte[] report, int timeout) {
+		try {
+			socket.setSoTimeout(timeout);
+			// pack what's available into a HID style report
+			int n = in.read(report, 1, WMR100Constants.PACKET_LENGTH - 2);
+			if (n < 0) {
+				lastError = "connection closed by bridge";
+				return -1;
+			}
+			report[0] = (byte) n;
+			return n + 1;
+		} catch (SocketTimeoutException e) {
+			return 0;
+		} catch (IOException e) {
+			lastError = e.getMessage();
+			return -1;
+		}
+	}
+
+	@Override
+	public String getLastErrorMessage() { return lastError; }
+
+	@Override
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				WMRUtils.writeErrMessage("Could not properly close %s", getName());
+			}
+		}
+		socket = null;
+		in = null;
+	}
+
+	@Override
+	public void shutdown() {
+		close();
+	}
+}
@@ -21,9 +21,18 @@ public class WMR100Command {
 	private long timestamp = 0;
 
 	public WMR100Command(byte[] cmd, int len) {
+		this(cmd, len, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param cmd command bytes
+	 * @param len command length
+	 * @param timestamp time (msec) the command was received, e.g. when reprocessing captured data
+	 */
+	public WMR100Command(byte[] cmd, int len, long timestamp) {
 		System.arraycopy(cmd, 0, data, 0, len);
 		cmdLen = len;
-		timestamp = System.currentTimeMillis();
+		this.timestamp = timestamp;
 		validate();
 	}
 
@@ -125,12 +134,12 @@ public class WMR100Command {
 	 * Note that this doesn't care whether the items are defined in configuration
 	 * @param cmd
 	 */
-	// this is the previous value used for wind chill calculations (only refreshed when temperatures are reported)
-	static double lastWindSpeed = 0;  // in mps!
-	public void updateDataQueue(DataQueue queue) {
+	public void updateDataQueue(DataSink queue) {
 		if (isValid() == false) return;
 		// WMRUtils.writeLogMessage("Parsing command into item values: %s", toString());
 		double val;
+		int channel = (getSensor() == WMR100Constants.SENSOR_TEMP || getSensor() == WMR100Constants.SENSOR_WATERTEMP ? (data[2] & 0x0F) : 0);
+		queue.beginFrame(getSensor(), channel, timestamp);
 		switch (getSensor()) {
 		case WMR100Constants.SENSOR_PRESSURE:
 			val = (256*(0x0F & data[3])) + WMRUtils.getInt(data[2]);
@@ -165,7 +174,7 @@ public class WMR100Command {
 			if (queue.getTempUnit() == DataQueue.tempUnits.F)
 				val2 = (val2* 9.0 / 5.0) + 32.0;
 			queue.addValue(String.format("%s/%d", WMR100Constants.ITEM_HEATINDEX, (data[2] & 0x0F)), new Double(val2));
-			val2 = WMRUtils.windChill(val, lastWindSpeed);
+			val2 = WMRUtils.windChill(val, queue.getLastWindSpeed());
 			if (queue.getTempUnit() == DataQueue.tempUnits.F)
 				val2 = (val2* 9.0 / 5.0) + 32.0;
 			queue.addValue(String.format("%s/%d", WMR100Constants.ITEM_WINDCHILL, (data[2] & 0x0F)), new Double(val2));
@@ -210,7 +219,7 @@ public class WMR100Command {
 			queue.addValue(WMR100Constants.ITEM_WIND_GUST, new Double(wind));
 
 			wind = ((16*WMRUtils.getInt(data[6])) + ((0xF0&data[5])>>4)) / 10.0;
-			lastWindSpeed = wind;
+			queue.setLastWindSpeed(wind);
 			queue.addValue(WMR100Constants.ITEM_WIND_BEAUFORTSCALE, WMRUtils.getBeaufortScale(wind));
 			if (queue.getWindSpeedUnit() == DataQueue.windSpeedUnits.MPH)
 				wind = wind * 2.23694;
@@ -220,6 +229,7 @@ public class WMR100Command {
 			queue.addValue(WMR100Constants.ITEM_WIND_BATTERY, new Boolean(WMRUtils.isBatteryOn(data[0])));
 			break;
 		}
+		queue.endFrame();
 	}
 
 	@Override
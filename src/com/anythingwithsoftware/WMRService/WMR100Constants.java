@@ -13,6 +13,7 @@ public interface WMR100Constants {
 	static final int DEFAULT_STATION_PRODUCT = 0xFFFFCA01;  //weird sign extension thing...
 	static final String DEFAULT_MONITORINGINTERVAL = "30";
 	static final String DEFAULT_CMDSPERINTERVAL = "5";
+	static final long MIN_FLUSH_INTERVAL = 1000;	// msec, coalesce reporting mode
 	static final int PACKET_LENGTH = 9;
 	static final int MAX_PACKET = 25;
 	static final byte[] STATION_INITIALIZATION = { (byte) 0x00,
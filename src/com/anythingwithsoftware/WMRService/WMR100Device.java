@@ -1,121 +1,303 @@
-/* 
+/*
  * WMR100Device
- * Talking to a WMR100 attached as a USB device through the HID interface  
- *  
+ * Keeps a WMR100 connected: owns the transport (USB HID, TCP bridge or capture replay) and the downstream pipeline
+ * (data queue, diagnostic tap, event stream), which are created once and reused across reconnects.
+ * All opening/closing is done by a single supervisor thread. Hotplug notifications, data collector failures and
+ * restart requests are only posted to it as events, so the transport is never opened twice. While disconnected
+ * the supervisor retries with a growing delay, but a hotplug "attached" event triggers an immediate reconnect.
+ *
  * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
- * 
+ *
  * */
 
 package com.anythingwithsoftware.WMRService;
 
 import java.util.Properties;
-import org.hid4java.HidDevice;
-import org.hid4java.HidException;
-import org.hid4java.HidManager;
-import org.hid4java.HidServices;
-import org.hid4java.HidServicesListener;
-import org.hid4java.event.HidServicesEvent;
-
-public class WMR100Device implements HidServicesListener {
-	private HidServices hidServices;
-	private HidDevice wmr = null;
-	private DataCollector wmrDataCollector = null;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class WMR100Device implements WMRTransport.Listener {
+	static final long MIN_RETRY_DELAY = 250;		// msec
+	static final long MAX_RETRY_DELAY = 30000;		// msec
+	static final long STABLE_CONNECTION = 10000;	// msec, a connection lasting this long resets the retry delay
+
+	public enum deviceStates {
+		DISCONNECTED,
+		CONNECTED,
+		STOPPED
+	};
+
+	private enum eventTypes {
+		ATTACHED,		// transport is available again (hotplug)
+		LOST,			// transport went away (hotplug/failure)
+		COLLECTOR_STOPPED,
+		RESTART,
+		STOP
+	};
+
+	private static class DeviceEvent {
+		final eventTypes type;
+		final Object source;
+		DeviceEvent(eventTypes type, Object source) {
+			this.type = type;
+			this.source = source;
+		}
+	}
+
+	private WMRTransport transport = null;
+	private volatile DataCollector wmrDataCollector = null;
 	private DataQueue wmrDataItemQueue = null;
+	private DiagnosticTap diagnosticTap = null;
+	private StreamServer streamServer = null;
 	private Properties props = null;
+	private volatile deviceStates state = deviceStates.DISCONNECTED;
+	private LinkedBlockingQueue<DeviceEvent> events = new LinkedBlockingQueue<DeviceEvent>();
+	private Thread supervisor = null;
+	// supervisor thread only
+	private long retryDelay = MIN_RETRY_DELAY;
+	private long nextAttempt = 0;
+	private long connectedAt = 0;
+	private DataCollector stoppingCollector = null;	// stopped collector that hasn't terminated yet
 
 	public WMR100Device(Properties props) {
 		this.props = props;
+		// the event stream outlives device restarts, clients stay connected
+		streamServer = new StreamServer(props);
+		if (streamServer.isEnabled())
+			streamServer.start();
 	}
 
-	public boolean initializeWMR() {
-		WMRUtils.writeLogMessage("Initializing WMR");
+	/**
+	 * @param props configuration
+	 * @return the transport selected by the "transport" property, null if misconfigured
+	 */
+	public static WMRTransport createTransport(Properties props) {
+		String t = props.getProperty("transport", "hid");
+		if (t.compareToIgnoreCase("hid") == 0) {
+			return new HidTransport();
+		} else if (t.compareToIgnoreCase("tcp") == 0) {
+			String host = props.getProperty("bridgeHost", "");
+			if (host.length() == 0) {
+				WMRUtils.writeErrMessage("bridgeHost not configured");
+				return null;
+			}
+			return new TcpTransport(host, Integer.parseInt(props.getProperty("bridgePort", "4000")));
+		} else if (t.compareToIgnoreCase("replay") == 0) {
+			String file = props.getProperty("replayFile", "");
+			if (file.length() == 0) {
+				WMRUtils.writeErrMessage("replayFile not configured");
+				return null;
+			}
+			return new ReplayTransport(file, Double.parseDouble(props.getProperty("replaySpeed", "1")));
+		}
+		WMRUtils.writeErrMessage("Unknown transport %s", t);
+		return null;
+	}
+
+	/**
+	 * Start the supervisor, which connects to the station and keeps it connected.
+	 * @return false if the transport is not configured correctly
+	 */
+	public boolean start() {
+		transport = createTransport(props);
+		if (transport == null)
+			return false;
+		transport.setListener(this);
+
+		// the pipeline is built once and shared by all connections
+		wmrDataItemQueue = new DataQueue(props, streamServer);
+		diagnosticTap = new DiagnosticTap(props, wmrDataItemQueue);
 
+		supervisor = new Thread(() -> supervise(), "WMR100Device");
+		supervisor.start();
+		return true;
+	}
+
+	/**
+	 * Disconnect and stop the supervisor, sending whatever values are pending.
+	 */
+	public synchronized void stop() {
+		if (supervisor == null)
+			return;
+		events.add(new DeviceEvent(eventTypes.STOP, null));
 		try {
-			// find the WMR as a HID device
-			hidServices = HidManager.getHidServices();
-			hidServices.addHidServicesListener(this);
-			wmr = hidServices.getHidDevice(WMR100Constants.DEFAULT_STATION_VENDOR, WMR100Constants.DEFAULT_STATION_PRODUCT, null);
+			supervisor.join();
+		} catch (InterruptedException e) {
+			WMRUtils.writeErrMessage("Interrupted while stopping WMR100");
+		}
+		supervisor = null;
+		wmrDataItemQueue.close();
+		streamServer.interrupt();
+	}
 
-			if (wmr != null) {
+	/**
+	 * Ask for the connection to be closed and opened again (e.g. the station has gone quiet).
+	 * @param reason for the log
+	 */
+	public void restart(String reason) {
+		WMRUtils.writeErrMessage("WMR100 restart requested: %s", reason);
+		events.add(new DeviceEvent(eventTypes.RESTART, null));
+	}
 
-				// Send the initialize message to WMR
-				if (wmr.write(WMR100Constants.STATION_INITIALIZATION, WMR100Constants.STATION_INITIALIZATION.length, (byte) 0) == -1) {
-					WMRUtils.writeErrMessage("WMR initialization error: %s", wmr.getLastErrorMessage());
-				}
+	public deviceStates getState() {
+		return state;
+	}
 
-				// initialize the item data queue
-				wmrDataItemQueue = new DataQueue(props);
+	/**
+	 * @return collector of the current connection, null while disconnected
+	 */
+	public DataCollector getDataCollector() {
+		return wmrDataCollector;
+	}
 
-				// start data collector in a separate thread
-				wmrDataCollector = new DataCollector(wmr, wmrDataItemQueue);
-				// note: this thread state is monitored in WMRService.main() 
-				wmrDataCollector.start();
-				return true;
+	/**
+	 * Called by the data collector when it stops on its own (read error/exception).
+	 */
+	void collectorStopped(DataCollector dc) {
+		events.add(new DeviceEvent(eventTypes.COLLECTOR_STOPPED, dc));
+	}
 
-			} else {
+	// *********************************************************************************************
+	// *********************************************************************************************
+	// transport events, only queued here and handled by the supervisor thread
 
-				WMRUtils.writeErrMessage("WMR100 not found! Attached devices: ");
-				for (HidDevice hidDevice : hidServices.getAttachedHidDevices()) {
-					System.err.println(hidDevice.toString());
-				}
-				return false;
+	@Override
+	public void transportAvailable(WMRTransport t) {
+		events.add(new DeviceEvent(eventTypes.ATTACHED, t));
+	}
 
-			}
-		} catch (HidException e) {
-			WMRUtils.writeErrMessage("HID exception: %s", e.getMessage());
-			e.printStackTrace(System.err);
-			return false;
-		}
+	@Override
+	public void transportLost(WMRTransport t, String reason) {
+		WMRUtils.writeErrMessage("%s lost: %s", t.getName(), reason);
+		events.add(new DeviceEvent(eventTypes.LOST, t));
 	}
 
-	public void deinitializeWMR() {
-		WMRUtils.writeLogMessage("Deinitializing WMR");
+	// *********************************************************************************************
+	// *********************************************************************************************
+	// supervisor
 
-		if (wmrDataCollector.getState() != Thread.State.TERMINATED) {
-			wmrDataCollector.interrupt();
-			try {
-				wmrDataCollector.join(1500);
-			} catch (InterruptedException e) {
-				WMRUtils.writeErrMessage("Unable to interrupt data collector");
-			}
-		}
-		if (wmr != null && wmr.isOpen()) {
-			try {
-				wmr.close();
-				WMRUtils.writeLogMessage("WMR100 device closed.");
-			} catch (Exception e) {
-				WMRUtils.writeErrMessage("Could not properly close WMR device");
+	private void supervise() {
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (state == deviceStates.DISCONNECTED && now >= nextAttempt) {
+					if (connect()) {
+						connectedAt = now;
+					} else {
+						nextAttempt = now + retryDelay;
+						retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+					}
+				}
+
+				DeviceEvent e = (state == deviceStates.CONNECTED ? events.take() :
+					events.poll(Math.max(0, nextAttempt - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+				if (e == null)
+					continue;
+				switch (e.type) {
+				case STOP:
+					shutdown();
+					return;
+				case ATTACHED:
+					// reconnect right away
+					retryDelay = MIN_RETRY_DELAY;
+					nextAttempt = 0;
+					break;
+				case COLLECTOR_STOPPED:
+					if (e.source == wmrDataCollector) {
+						connectionLost();
+					} else if (e.source == stoppingCollector) {
+						// a collector we stopped has finally terminated, the transport is free again
+						nextAttempt = 0;
+					}
+					break;
+				case LOST:
+					connectionLost();
+					break;
+				case RESTART:
+					if (state == deviceStates.CONNECTED)
+						disconnect();
+					retryDelay = MIN_RETRY_DELAY;
+					nextAttempt = 0;
+					break;
+				}
 			}
+		} catch (InterruptedException ex) {
+			shutdown();
 		}
 	}
 
-	public DataCollector getDataCollector() {
-		return wmrDataCollector;
+	private void shutdown() {
+		disconnect();
+		state = deviceStates.STOPPED;
+		if (stoppingCollector != null && !stopCollector(stoppingCollector, 5000))
+			WMRUtils.writeErrMessage("Data collector did not stop, closing %s anyway", transport.getName());
+		transport.shutdown();
 	}
 
-	// *********************************************************************************************
-	// *********************************************************************************************
-	// handle HID events
+	private void connectionLost() {
+		if (state != deviceStates.CONNECTED)
+			return;
+		disconnect();
+		long now = System.currentTimeMillis();
+		// a connection that keeps failing right away is retried with the growing delay
+		if (now - connectedAt < STABLE_CONNECTION) {
+			nextAttempt = now + retryDelay;
+			retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+		} else {
+			retryDelay = MIN_RETRY_DELAY;
+			nextAttempt = 0;
+		}
+	}
 
-	@Override
-	public void hidDeviceAttached(HidServicesEvent event) {
-		if (event.getHidDevice().getVendorId() == WMR100Constants.DEFAULT_STATION_VENDOR && event.getHidDevice().getProductId() == WMR100Constants.DEFAULT_STATION_PRODUCT) {
-			initializeWMR();
+	private boolean connect() {
+		// the transport isn't touched until the previous collector is gone, it may still be reading from it
+		if (stoppingCollector != null) {
+			if (stoppingCollector.isAlive())
+				return false;
+			stoppingCollector = null;
 		}
+		// never leave an earlier connection open underneath
+		if (transport.isOpen())
+			transport.close();
+		if (!transport.open())
+			return false;
+		WMRUtils.writeLogMessage("WMR100 connected through %s", transport.getName());
+		// start data collector in a separate thread
+		// duplicate frames are still decoded once per reporting interval, so throttled values catch up
+		FrameCache cache = (Boolean.parseBoolean(props.getProperty("frameCache", "true")) ?
+				new FrameCache(Integer.parseInt(props.getProperty("maxReportingRate", "60")) * 1000L) : null);
+		wmrDataCollector = new DataCollector(transport, wmrDataItemQueue, diagnosticTap, cache, this);
+		wmrDataCollector.start();
+		state = deviceStates.CONNECTED;
+		return true;
 	}
 
-	@Override
-	public void hidDeviceDetached(HidServicesEvent event) {
-		if (event.getHidDevice().getVendorId() == WMR100Constants.DEFAULT_STATION_VENDOR && event.getHidDevice().getProductId() == WMR100Constants.DEFAULT_STATION_PRODUCT) {
-			deinitializeWMR();
+	private void disconnect() {
+		DataCollector dc = wmrDataCollector;
+		wmrDataCollector = null;
+		state = deviceStates.DISCONNECTED;
+		if (dc != null && !stopCollector(dc, 1500)) {
+			// e.g. blocked publishing, leave the transport open underneath it and reconnect once it has terminated
+			WMRUtils.writeErrMessage("Data collector still running, waiting for it before reconnecting");
+			stoppingCollector = dc;
+			return;
 		}
+		if (transport.isOpen())
+			transport.close();
+		WMRUtils.writeLogMessage("WMR100 disconnected");
 	}
 
-	@Override
-	public void hidFailure(HidServicesEvent event) {
-		WMRUtils.writeErrMessage("HID failure: ", event.toString());
-		deinitializeWMR();
-		initializeWMR();
+	/**
+	 * @return true if the collector has terminated
+	 */
+	private boolean stopCollector(DataCollector dc, long wait) {
+		dc.shutdown();
+		try {
+			dc.join(wait);
+		} catch (InterruptedException e) {
+			WMRUtils.writeErrMessage("Unable to interrupt data collector");
+		}
+		return !dc.isAlive();
 	}
 
 }
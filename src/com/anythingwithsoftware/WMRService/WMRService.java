@@ -24,51 +24,61 @@ public class WMRService {
 				return;
 			}
 			prop.load(input);
+
+			// batch mode: WMRService reprocess <capture directory> <output directory>
+			if (args.length > 0 && args[0].compareToIgnoreCase("reprocess") == 0) {
+				if (args.length != 3) {
+					WMRUtils.writeErrMessage("Usage: reprocess <capture directory> <output directory>");
+					return;
+				}
+				Reprocessor.reprocess(prop, args[1], args[2]);
+				return;
+			}
+
+			if (prop.getProperty("MQTTbroker", "").length() == 0)
+				WMRUtils.writeErrMessage("MQTT broker not configured correctly");
 			int monitoringInterval = Integer
 					.parseInt(prop.getProperty("monitoringInterval", WMR100Constants.DEFAULT_MONITORINGINTERVAL));
 			int minCommandsInInterval = Integer
 					.parseInt(prop.getProperty("minCommandsInInterval", WMR100Constants.DEFAULT_CMDSPERINTERVAL));
 
 			WMR100Device device = new WMR100Device(prop);
-			if (!device.initializeWMR())
+			if (!device.start())
 				return;
+			// stopping the service (Ctrl-C, service manager) still sends pending values and drains the broker journal
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> device.stop(), "WMRService shutdown"));
 
-			// data collection thread is now running
+			// the device keeps itself connected, this just watches that data keeps coming
 			int quietTimes = 0;
 			while (!Thread.interrupted()) {
+				Thread.sleep(monitoringInterval * 1000);
 				DataCollector dc = device.getDataCollector();
+				if (dc == null) {
+					WMRUtils.writeErrMessage("WMR100 not connected");
+					quietTimes = 0;
+					continue;
+				}
 
-				// if the data collection thread gets terminated
-				// (exception/device error), try to restart it
-				if (dc.getState() == Thread.State.TERMINATED) {
-					device.deinitializeWMR();
-					if (!device.initializeWMR())
-						return;
-
-				} else {
-					DataQueue dq = dc.getData();
-					if (dc.getCommandsReceived() < minCommandsInInterval) {
-						WMRUtils.writeErrMessage("WMR100 has gone quiet");
-						++quietTimes;
-						if (quietTimes > 5) {
-							WMRUtils.writeErrMessage("5 successive quiet failures: trying to restart WMR100");
-							device.deinitializeWMR();
-							device.initializeWMR();
-						}
-					} else {
+				DataQueue dq = dc.getData();
+				if (dc.getCommandsReceived() < minCommandsInInterval) {
+					WMRUtils.writeErrMessage("WMR100 has gone quiet");
+					++quietTimes;
+					if (quietTimes > 5) {
+						device.restart("5 successive quiet failures");
 						quietTimes = 0;
-						String t = (new SimpleDateFormat("HH:mm:ss.SS")).format(new Date(dc.getLastDataReceived()));
-						WMRUtils.writeLogMessage(
-								"WMR100 last command received: %s, %d commands received, %d data updates sent", t,
-								dc.getCommandsReceived(), dq.getMessageCount());
-						dc.resetCommandCount();
-						dq.resetMessageCount();
 					}
-					Thread.sleep(monitoringInterval * 1000);
+				} else {
+					quietTimes = 0;
+					String t = (new SimpleDateFormat("HH:mm:ss.SS")).format(new Date(dc.getLastDataReceived()));
+					WMRUtils.writeLogMessage(
+							"WMR100 last command received: %s, %d commands received (%.0f%% repeats), %d data updates sent", t,
+							dc.getCommandsReceived(), dc.getDuplicateRatio(), dq.getMessageCount());
+					dc.resetCommandCount();
+					dq.resetMessageCount();
 				}
 			}
 
-			device.deinitializeWMR();
+			device.stop();
 
 		} catch (Exception ex) {
 			WMRUtils.writeErrMessage("WMRService exception: %s", ex.toString());
@@ -0,0 +1,51 @@
+/* 
+ * WMRTransport
+ * Connection to a WMR100 station. Reads deliver data in the same form as the station's USB HID reports: the first
+ * byte is the number of data bytes that follow. 
+ *  
+ * See the "LICENSE.txt" file for the full license terms and conditions governing this code.
+ * */
+package com.anythingwithsoftware.WMRService;
+
+public interface WMRTransport {
+
+	/**
+	 * Notifications from transports that can detect the station coming and going (e.g. USB hotplug).
+	 * Called from the transport's own threads, so implementations should only take note and return.
+	 */
+	public interface Listener {
+		void transportAvailable(WMRTransport transport);
+		void transportLost(WMRTransport transport, String reason);
+	}
+
+	/**
+	 * @return short description for log messages
+	 */
+	String getName();
+
+	void setListener(Listener listener);
+
+	/**
+	 * Open the connection and send the station initialization.
+	 * @return false if the station is not available
+	 */
+	boolean open();
+
+	boolean isOpen();
+
+	/**
+	 * @param report buffer of at least WMR100Constants.PACKET_LENGTH bytes
+	 * @param timeout msec to wait for data
+	 * @return number of bytes read, 0 on timeout, -1 on error (see getLastErrorMessage())
+	 */
+	int read(byte[] report, int timeout);
+
+	String getLastErrorMessage();
+
+	void close();
+
+	/**
+	 * Release everything, the transport won't be opened again.
+	 */
+	void shutdown();
+}
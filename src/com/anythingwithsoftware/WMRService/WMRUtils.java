@@ -16,16 +16,64 @@ import com.anythingwithsoftware.WMRService.WMR100Constants;
  */
 public class WMRUtils {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	/**
 	 * Converts an array of bytes to a human readable string.
 	 * @param a
 	 * @return
 	 */
 	public static String byteArrayToHex(byte[] a) {
-		StringBuilder sb = new StringBuilder();
-		for(byte b: a)
-			sb.append(String.format("%02x ", b&0xff));
-		return sb.toString();
+		char[] hex = new char[a.length * 3];
+		int pos = 0;
+		for(byte b: a) {
+			hex[pos++] = HEX_DIGITS[(b >> 4) & 0x0F];
+			hex[pos++] = HEX_DIGITS[b & 0x0F];
+			hex[pos++] = ' ';
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Writes bytes as space separated hex pairs into a caller supplied buffer, without allocating.
+	 * @param src bytes to convert
+	 * @param off offset of first byte in src
+	 * @param len number of bytes to convert
+	 * @param dest destination buffer, needs room for 3 bytes per converted byte
+	 * @param pos offset in dest to start writing
+	 * @return offset in dest after the last byte written
+	 */
+	public static int appendHex(byte[] src, int off, int len, byte[] dest, int pos) {
+		for (int i = off; i < off + len; i++) {
+			dest[pos++] = (byte) HEX_DIGITS[(src[i] >> 4) & 0x0F];
+			dest[pos++] = (byte) HEX_DIGITS[src[i] & 0x0F];
+			dest[pos++] = ' ';
+		}
+		return pos;
+	}
+
+	/**
+	 * Reads space separated hex pairs, as written by appendHex.
+	 * @param s string to read from
+	 * @param pos offset of the first hex pair in s
+	 * @param dest destination buffer
+	 * @return number of bytes read
+	 */
+	public static int parseHex(String s, int pos, byte[] dest) {
+		int len = 0;
+		while (pos + 1 < s.length()) {
+			if (s.charAt(pos) == ' ') {
+				++pos;
+				continue;
+			}
+			int hi = Character.digit(s.charAt(pos), 16);
+			int lo = Character.digit(s.charAt(pos + 1), 16);
+			if (hi < 0 || lo < 0 || len == dest.length)
+				throw new IllegalArgumentException(String.format("bad hex data at %d", pos));
+			dest[len++] = (byte) ((hi << 4) | lo);
+			pos += 2;
+		}
+		return len;
 	}
 
 	/**
@@ -58,6 +106,31 @@ public class WMRUtils {
 		return "Inactive";
 	}
 
+	/**
+	 * @param sensor sensor type (WMR100Constants.SENSOR_ constants)
+	 * @return name used for the sensor in topics and configuration
+	 */
+	public static String getSensorName(byte sensor) {
+		switch (sensor) {
+		case WMR100Constants.SENSOR_TEMP:
+			return "temperature";
+		case WMR100Constants.SENSOR_WATERTEMP:
+			return "waterTemperature";
+		case WMR100Constants.SENSOR_WIND:
+			return "wind";
+		case WMR100Constants.SENSOR_PRESSURE:
+			return "pressure";
+		case WMR100Constants.SENSOR_RAIN:
+			return "rain";
+		case WMR100Constants.SENSOR_UV:
+			return "UV";
+		case WMR100Constants.SENSOR_TIMESTAMP:
+			return "station";
+		default:
+			return String.format("%02x", sensor);
+		}
+	}
+
 	public static String getCompass(int degrees) {
 		int index = (int)(((degrees > 348) ? (double)(degrees) : (double)(degrees + 11.24)) / 22.5);
 		return (index >= 0 && index < 16) ? WMR100Constants.COMPASS_DIRECTION[index] : "Unknown";